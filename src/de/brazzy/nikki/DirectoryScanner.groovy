@@ -21,27 +21,38 @@ package de.brazzy.nikki
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingWorker;
 
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
+import org.codehaus.groovy.runtime.InvokerInvocationException;
 import org.joda.time.DateTimeZone;
 
 import slash.navigation.base.BaseNavigationPosition;
 import slash.navigation.base.NavigationFormat;
 
-import de.brazzy.nikki.model.Cardinal;
+import de.brazzy.nikki.model.Day;
 import de.brazzy.nikki.model.Directory;
 import de.brazzy.nikki.model.GeoCoordinate;
 import de.brazzy.nikki.model.Image;
 import de.brazzy.nikki.model.ImageReader;
+import de.brazzy.nikki.model.MetadataSidecar;
+import de.brazzy.nikki.model.Track;
 import de.brazzy.nikki.model.Waypoint;
 import de.brazzy.nikki.model.WaypointFile;
+import de.brazzy.nikki.util.ChangePublisher;
 import de.brazzy.nikki.util.NikkiWorker;
 import de.brazzy.nikki.util.ParserFactory;
 import de.brazzy.nikki.util.TimezoneFinder;
 import de.brazzy.nikki.util.TimezoneMissingException;
+import de.brazzy.nikki.util.TrackParser;
+import de.brazzy.nikki.util.TrackPointBuffer;
+import de.brazzy.nikki.util.TrackFileType;
 
 /**
  * Populates Directory instances with image and GPS data
@@ -50,9 +61,18 @@ import de.brazzy.nikki.util.TimezoneMissingException;
  */
 class DirectoryScanner {
 
+    /**
+     * Difference in degrees below which a coordinate read from an image
+     * file is considered unchanged
+     */
+    private static final double GPS_TOLERANCE = 1e-4
+
     /** finds time zones for waypoints */
     TimezoneFinder finder
 
+    /** supplies the finder if it is still being loaded when this is created */
+    Future<TimezoneFinder> finderFuture
+
     /** Yields parsers for parsing GPS logs */
     ParserFactory parserFactory
 
@@ -68,6 +88,34 @@ class DirectoryScanner {
      */
     Map<String, Exception> exceptions = [:]
 
+    /**
+     * Number of threads used to read image files in parallel
+     */
+    int threads = Runtime.runtime.availableProcessors()
+
+    /**
+     * Directory in which to keep {@link ScanIndex} files, so that
+     * unchanged images need not be parsed again; null to disable
+     */
+    File indexDir
+
+    /**
+     * Whether to use the built-in streaming parsers for the formats that
+     * have one, rather than RouteConverter
+     */
+    boolean nativeParsers = true
+
+    /**
+     * If true, image thumbnails are not read during the scan but only
+     * marked as pending, to be read when they are displayed
+     */
+    boolean lazyThumbnails
+
+    /**
+     * Applies all changes to the directory on the event dispatch thread
+     */
+    ChangePublisher publisher = new ChangePublisher()
+
     /**
      * Scans a directory for image and GPS files and populates it with 
      * the data in them
@@ -78,68 +126,263 @@ class DirectoryScanner {
      *         have no time zone in their EXIF data
      */
     public scan(Directory dir, NikkiWorker worker) throws TimezoneMissingException{
+        synchronized(dir){
+            scanSynchronized(dir, worker)
+        }
+    }
+
+    private scanSynchronized(Directory dir, NikkiWorker worker) throws TimezoneMissingException{
         worker?.progress = 0
 
         def allFiles = dir.path.list() as Set;
-        def imageFiles = allFiles.findAll{
-            it.toUpperCase().endsWith(".JPG") ||
-                    it.toUpperCase().endsWith(".JPEG")
+        def imageFiles = allFiles.findAll{ isImageFile(it) }
+        def otherFiles = allFiles.findAll{ isWaypointFile(dir, it) } as Set
+
+        ScanIndex index = indexDir ? new ScanIndex(ScanIndex.indexFileFor(indexDir, dir.path)) : null
+        MetadataSidecar sidecar = new MetadataSidecar(dir.path)
+
+        try{
+            removeMissing(dir, allFiles)
+            parseWaypointFiles(dir, otherFiles, worker)
+            publisher.flush()
+            readImages(dir, imageFiles, worker, imageFiles.size() + otherFiles.size(), index, sidecar)
+
+            if(index){
+                index.retain(imageFiles)
+                try{
+                    index.save()
+                }catch(IOException e){
+                    Logger.getLogger(getClass()).error("Error writing scan index", e)
+                }
+            }
+
+            publishContentsChanged(dir)
+        } finally {
+            publisher.flush()
         }
-        def otherFiles = new HashSet(allFiles)
-        otherFiles.removeAll(imageFiles)
-        otherFiles = otherFiles.findAll{
-            !new File(dir.path, it).isDirectory() &&
-                    !it.toUpperCase().endsWith(".AVI") &&
-                    !it.toUpperCase().endsWith(".THM") &&
-                    !it.toUpperCase().endsWith(".DB")
+        worker?.progress = 0
+    }
+
+    /**
+     * Incrementally updates a directory with changes to individual files,
+     * without rescanning the rest. Images with unsaved modifications are
+     * left alone, as are new images that have no time zone in their EXIF
+     * data when {@link #zone} is not set.
+     * 
+     * @param dir the directory to update
+     * @param changed names of files that were created or modified
+     * @param deleted names of files that were deleted
+     */
+    public void applyChanges(Directory dir, Collection<String> changed, Collection<String> deleted){
+        synchronized(dir){
+            try{
+                def waypointFiles = changed.findAll{ isWaypointFile(dir, it) } as Set
+                publishRemove(dir, deleted)
+                publishRemove(dir, waypointFiles)
+                publisher.flush()
+                parseWaypointFiles(dir, waypointFiles, null)
+                publisher.flush()
+
+                def imageFiles = changed.findAll{ isImageFile(it) }
+                def sidecar = imageFiles ? new MetadataSidecar(dir.path) : null
+                List<Image> removed = []
+                List<Image> added = []
+                for(fileName in imageFiles){
+                    updateImage(dir, fileName, sidecar, removed, added)
+                }
+                if(added){
+                    publishReplace(dir, removed, added)
+                }
+
+                publishContentsChanged(dir)
+            } finally {
+                publisher.flush()
+            }
         }
+    }
 
-        removeMissing(dir, allFiles)
-        parseWaypointFiles(dir, otherFiles, worker)
-		readImages(dir, imageFiles, worker, imageFiles.size() + otherFiles.size())
+    private publishRemove(Directory dir, Collection<String> files){
+        publisher.publish({ removeFiles(dir, files) } as Runnable)
+    }
 
-        dir.fireContentsChanged(dir, 0, dir.size-1)
-        worker?.progress = 0
+    private publishContentsChanged(Directory dir){
+        publisher.publish({ dir.fireContentsChanged(dir, 0, dir.size-1) } as Runnable)
+    }
+
+    private publishAdd(Directory dir, List<Image> images){
+        publisher.publish({ dir.addImages(images) } as Runnable)
+    }
+
+    private publishAdd(Directory dir, WaypointFile wf){
+        publisher.publish({ dir.addWaypointFile(wf) } as Runnable)
+    }
+
+    /**
+     * Replaces images in the directory; the Days whose images changed
+     * fire a change event so that a table showing them is not left stale
+     */
+    private publishReplace(Directory dir, List<Image> removed, List<Image> added){
+        publisher.publish({
+            Set<Day> touched = new LinkedHashSet<Day>()
+            for(Image image in removed){
+                touched.add(image.day)
+                dir.removeImage(image)
+            }
+            for(Image image in added){
+                touched.add(dir.addImage(image))
+            }
+            touched*.fireTableDataChanged()
+        } as Runnable)
+    }
+
+    private updateImage(Directory dir, String fileName, MetadataSidecar sidecar,
+            List<Image> removed, List<Image> added){
+        def old = dir.images[fileName]
+        if(old?.modified){
+            Logger.getLogger(getClass()).warn(
+                    "Not reloading changed image with unsaved modifications: " + fileName)
+            return
+        }
+        try{
+            def image = readImage(new File(dir.path, fileName), null, sidecar)
+            if(old){
+                // most likely just saved by ourselves
+                if(old.time == image.time && old.title == image.title &&
+                        old.description == image.description && old.export == image.export &&
+                        sameCoordinate(old.waypoint?.latitude, image.waypoint?.latitude) &&
+                        sameCoordinate(old.waypoint?.longitude, image.waypoint?.longitude)){
+                    return
+                }
+            }
+            if(old){
+                removed.add(old)
+            }
+            added.add(image)
+        }catch(TimezoneMissingException e){
+            Logger.getLogger(getClass()).info(
+                    "Not loading image without time zone: " + fileName)
+        }
+    }
+
+    /**
+     * @return whether both coordinates are missing or equal, allowing for
+     *         the rounding of coordinates read back from EXIF data
+     */
+    private static boolean sameCoordinate(GeoCoordinate a, GeoCoordinate b){
+        if(!a || !b){
+            return !a && !b
+        }
+        return Math.abs(a.value - b.value) < GPS_TOLERANCE
+    }
+
+    private static boolean isImageFile(String fileName){
+        return fileName.toUpperCase().endsWith(".JPG") ||
+                fileName.toUpperCase().endsWith(".JPEG")
+    }
+
+    /**
+     * @return whether the file is a temporary one written by Nikki while
+     *         saving images or the metadata sidecar
+     */
+    static boolean isTempFile(String fileName){
+        return fileName ==~ /nikki.*tmp/
+    }
+
+    private static boolean isWaypointFile(Directory dir, String fileName){
+        return !isImageFile(fileName) && !isTempFile(fileName) &&
+                !new File(dir.path, fileName).isDirectory() &&
+                !fileName.toUpperCase().endsWith(".AVI") &&
+                !fileName.toUpperCase().endsWith(".THM") &&
+                fileName != MetadataSidecar.FILE_NAME &&
+                !fileName.toUpperCase().endsWith(".DB")
     }
 	
-	private readImages(Directory dir, Collection<String> files, NikkiWorker worker, int totalFileNum){
+    /**
+     * Reads the images on a pool of worker threads and publishes them
+     * to the directory in batches while they become available
+     */
+    private readImages(Directory dir, Collection<String> files, NikkiWorker worker, int totalFileNum, ScanIndex index, MetadataSidecar sidecar){
         int count = 0;
-        for(fileName in files){
-            worker?.labelUpdate = fileName
-            if(!dir.images[fileName]){
-                ImageReader reader = new ImageReader(new File(dir.path, fileName), this.zone)
-                if(reader.timeZone==null){
-                    throw new TimezoneMissingException()
+        def executor = Executors.newFixedThreadPool(threads)
+        def completion = new ExecutorCompletionService<Image>(executor)
+        Map<Future<Image>, String> pending = [:]
+        List<Image> loaded = []
+        long published = System.currentTimeMillis()
+        try{
+            for(fileName in files){
+                if(!dir.images[fileName]){
+                    def file = new File(dir.path, fileName)
+                    pending[completion.submit({ readImage(file, index, sidecar) } as Callable)] = fileName
+                } else {
+                    worker?.progress = new Integer((int)(++count / totalFileNum * 100))
                 }
-                dir.addImage(reader.createImage())
             }
+            while(pending){
+                def future = completion.take()
+                def fileName = pending.remove(future)
+                worker?.labelUpdate = fileName
+                try{
+                    loaded.add(future.get())
+                    if(System.currentTimeMillis() - published >= ChangePublisher.INTERVAL){
+                        publishAdd(dir, loaded)
+                        loaded = []
+                        published = System.currentTimeMillis()
+                    }
+                }catch(ExecutionException e){
+                    def cause = e.cause
+                    // closures coerced to Callable wrap checked exceptions
+                    if(cause instanceof InvokerInvocationException){
+                        cause = cause.cause
+                    }
+                    if(cause instanceof TimezoneMissingException){
+                        throw cause
+                    }
+                    Logger.getLogger(getClass()).error(
+                            "Error reading image file " + fileName, cause)
+                    exceptions[fileName] = cause
+                }
+                worker?.progress = new Integer((int)(++count / totalFileNum * 100))
+            }
+        } finally {
+            executor.shutdownNow()
+            publishAdd(dir, loaded)
+        }
+    }
 
-            worker?.progress = new Integer((int)(++count / totalFileNum * 100))
+    /**
+     * Reads an image from the index or the file, with the data from the
+     * sidecar taking precedence over both
+     */
+    private Image readImage(File file, ScanIndex index, MetadataSidecar sidecar){
+        Image image = index?.get(file, this.zone)
+        if(!image || (!lazyThumbnails && image.thumbnailPending)){
+            ImageReader reader = new ImageReader(file, this.zone)
+            if(reader.timeZone==null){
+                throw new TimezoneMissingException()
+            }
+            image = reader.createImage(!lazyThumbnails)
+            index?.put(file, reader, image)
         }
-	}
+        sidecar?.overlay(image)
+        return image
+    }
 
     private removeMissing(Directory dir, Set<String> files){
         def toRemove = []
-        for(image in dir.images.values()){
-            if(!files.contains(image.fileName)){
-                toRemove.add(image)
-            }
-        }
-        for(image in toRemove){
-            dir.removeImage(image)
-        }
+        toRemove.addAll(dir.images.keySet().findAll{ !files.contains(it) })
+        toRemove.addAll(dir.waypointFiles.keySet().findAll{ !files.contains(it) })
+        publishRemove(dir, toRemove)
+    }
 
-        toRemove = []
-        for(waypointFile in dir.waypointFiles.values()){
-            if(!files.contains(waypointFile.fileName)){
-                toRemove.add(waypointFile)
-            }
+    private removeFiles(Directory dir, Collection<String> files){
+        Set<Day> touched = new LinkedHashSet<Day>()
+        for(image in files.collect{ dir.images[it] }.findAll{ it }){
+            touched.add(image.day)
+            dir.removeImage(image)
         }
-        for(waypointFile in toRemove){
-            dir.waypointFiles.remove(waypointFile.fileName)
-            for(waypoint in waypointFile.waypoints){
-                dir.removeWaypoint(waypoint)
-            }
+        touched*.fireTableDataChanged()
+        for(waypointFile in files.collect{ dir.waypointFiles[it] }.findAll{ it }){
+            dir.removeWaypointFile(waypointFile)
         }
     }
 
@@ -150,9 +393,11 @@ class DirectoryScanner {
             if(!dir.waypointFiles[fileName]){
                 try{
                     def wf = parseWaypointFile(new File(dir.path, fileName))
-                    wf.directory = dir
-                    dir.addWaypointFile(wf)
-                    newFound = true;
+                    if(wf){
+                        wf.directory = dir
+                        publishAdd(dir, wf)
+                        newFound = true;
+                    }
                 }catch(Exception e){
                     Logger.getLogger(getClass()).error(
                             "Error reading waypoint file " + fileName, e)
@@ -161,37 +406,60 @@ class DirectoryScanner {
             }
         }
         if(newFound){
-            dir.geotag()
+            publisher.publish({ dir.geotag() } as Runnable)
         }
     }
 
 
     /**
      * Parses one GPS log file
+     * 
+     * @return null if the file is clearly not a GPS log
+     * @throws IllegalArgumentException if the file format could not be recognized
      */
     public WaypointFile parseWaypointFile(File file){
-        WaypointFile wf = new WaypointFile(fileName: file.getName())
-        NavigationFormat format = parserFactory.findParser(file)
-        def routes = format.read(new BufferedInputStream(new FileInputStream(file)))
-        def positions = routes*.positions.flatten()
-
-        for(BaseNavigationPosition pos in positions){
-            if(pos.latitude && pos.longitude && pos.time){
-                def lat = new GeoCoordinate(magnitude: Math.abs(pos.latitude),
-                        direction: pos.latitude > 0 ? Cardinal.NORTH : Cardinal.SOUTH)
-                def lon = new GeoCoordinate(magnitude: Math.abs(pos.longitude),
-                        direction: pos.longitude > 0 ? Cardinal.EAST : Cardinal.WEST)
-                def ts =  new DateTime(pos.time.timeInMillis, DateTimeZone.UTC)
-                def zone  = finder.find(lat.value, lon.value)
-                if(zone){
-                    ts = ts.withZone(zone)
-                }
+        TrackFileType type = TrackFileType.detect(file)
+        if(type == TrackFileType.NO_TRACK){
+            return null
+        }
+        TrackPointBuffer points = new TrackPointBuffer()
+        TrackParser parser = nativeParsers ? parserFactory.findTrackParser(type) : null
+        if(parser){
+            parser.parse(file, points)
+        } else {
+            NavigationFormat format = parserFactory.findParser(file, type)
+            if(!format){
+                throw new IllegalArgumentException("Unknown GPS log format")
+            }
+            def routes = format.read(new BufferedInputStream(new FileInputStream(file)))
+            def positions = routes*.positions.flatten()
 
-                def wp = new Waypoint(latitude: lat, longitude: lon, timestamp: ts)
-                wp.file = wf
-                wf.waypoints.add(wp)
+            for(BaseNavigationPosition pos in positions){
+                if(pos.latitude && pos.longitude && pos.time){
+                    points.point(pos.latitude, pos.longitude, pos.time.timeInMillis)
+                }
             }
         }
+
+        DateTimeZone[] zones = new DateTimeZone[points.size()]
+        getFinder().find(points.latitudesAsFloat, points.longitudesAsFloat, zones)
+
+        WaypointFile wf = new WaypointFile(fileName: file.getName())
+        wf.track = new Track(wf, points, zones)
         return wf
     }
+
+    /**
+     * @return the finder, waiting for {@link #finderFuture} if necessary
+     */
+    TimezoneFinder getFinder() {
+        if(finder == null && finderFuture != null) {
+            try {
+                finder = finderFuture.get()
+            } catch(ExecutionException e) {
+                throw new IllegalStateException("Could not load time zones", e.cause)
+            }
+        }
+        return finder
+    }
 }
@@ -0,0 +1,137 @@
+package de.brazzy.nikki
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Timer
+import java.util.TimerTask
+
+import org.apache.log4j.Logger
+
+import de.brazzy.nikki.model.Directory
+
+/**
+ * Keeps a scanned Directory current by periodically checking its
+ * files for changes and feeding only the created, modified and deleted
+ * ones into {@link DirectoryScanner#applyChanges}.
+ *
+ * A file is only considered once its size and modification time
+ * have stayed the same for one polling interval, so that files which
+ * are still being copied are not read half-written. Likewise, a file
+ * is only considered deleted once it is missing in two consecutive
+ * checks, since saving an image replaces the file by a renamed
+ * temporary one. Nikki's own temporary files are ignored, and no changes
+ * are applied while images in the directory are being saved.
+ *
+ * @author Michael Borgwardt
+ */
+class DirectoryWatcher {
+    /** The directory to keep current */
+    Directory dir
+
+    /** Applies the changes to the directory */
+    DirectoryScanner scanner
+
+    /** Milliseconds between checks */
+    long interval = 2000
+
+    /** size and modification time of each file, as last applied */
+    private Map<String, List<Long>> applied
+
+    /** size and modification time of changed files, as last seen */
+    private Map<String, List<Long>> pending = [:]
+
+    /** files that were missing in the last check but not yet applied as deleted */
+    private Set<String> missing = new HashSet<String>()
+
+    private volatile Timer timer
+
+    /**
+     * Remembers the current state of the directory as the baseline
+     * and starts checking for changes in a background thread
+     */
+    public synchronized void start(){
+        applied = snapshot()
+        timer = new Timer("DirectoryWatcher " + dir.path.name, true)
+        timer.schedule({ poll() } as TimerTask, interval, interval)
+    }
+
+    /**
+     * Stops checking for changes
+     */
+    public void stop(){
+        // not synchronized, so as not to wait for a running poll()
+        def t = timer
+        timer = null
+        t?.cancel()
+    }
+
+    /**
+     * Checks the directory for changes once and applies those that
+     * have settled. Does nothing while the directory is being saved.
+     */
+    public synchronized void poll(){
+        if(dir.saving){
+            return
+        }
+        if(applied == null){
+            applied = snapshot()
+            return
+        }
+        try{
+            def current = snapshot()
+            if(dir.saving){
+                return
+            }
+            def changed = []
+            def gone = applied.keySet().findAll{ !current.containsKey(it) } as Set
+            def deleted = gone.findAll{ missing.contains(it) }
+            missing = gone - deleted
+            pending.keySet().retainAll(current.keySet())
+
+            current.each{ name, stat ->
+                if(applied[name] != stat){
+                    if(pending[name] == stat){
+                        changed << name
+                        pending.remove(name)
+                    } else {
+                        pending[name] = stat
+                    }
+                }
+            }
+
+            if(changed || deleted){
+                scanner.applyChanges(dir, changed, deleted)
+                deleted.each{ applied.remove(it) }
+                changed.each{ applied[it] = current[it] }
+            }
+        }catch(Exception e){
+            Logger.getLogger(getClass()).error("Error updating directory " + dir.path, e)
+        }
+    }
+
+    private Map<String, List<Long>> snapshot(){
+        def result = [:]
+        dir.path.listFiles()?.each{ File f ->
+            if(f.isFile() && !DirectoryScanner.isTempFile(f.name)){
+                result[f.name] = [f.length(), f.lastModified()]
+            }
+        }
+        return result
+    }
+}
@@ -18,12 +18,15 @@ package de.brazzy.nikki;
  *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.UIManager;
 
 import de.brazzy.nikki.model.NikkiModel;
+import de.brazzy.nikki.model.SaveEngine;
 import de.brazzy.nikki.util.ParserFactory;
 import de.brazzy.nikki.util.TimezoneFinder;
 import de.brazzy.nikki.view.Dialogs;
@@ -36,17 +39,29 @@ import de.brazzy.nikki.view.NikkiFrame;
  */
 public class Launcher {
     public static void main(String[] args) throws Exception {
+        Startup startup = new Startup();
+        Future<TimezoneFinder> finder = startup.loadTimezoneFinder();
         UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         // UIManager.setLookAndFeel(UIManager.getCrossPlatformLookAndFeelClassName());
         // UIManager.setLookAndFeel("com.sun.java.swing.plaf.nimbus.NimbusLookAndFeel");
         Logger.getLogger("").setLevel(Level.WARNING);
-        TimezoneFinder finder = new TimezoneFinder(
-                TimezoneFinder.class.getResourceAsStream("timezones.dat"));
         Dialogs d = new Dialogs();
         Nikki n = new Nikki();
         ParserFactory pf = new ParserFactory();
-        n.build(NikkiModel.class, d, finder, pf);
+        n.build(NikkiModel.class, d, null, pf);
+        n.setTimezoneFinderFuture(finder);
+        startup.logTime("Window built");
+        n.setScanIndexDir(new File(System.getProperty("user.home"),
+                ".nikki" + File.separator + "index"));
+        n.setWatchInterval(2000);
+        n.setLazyThumbnails(true);
+        if (Boolean.getBoolean("nikki.sidecar")) {
+            n.setSaveEngine(new SaveEngine(SaveEngine.DEFAULT_THREADS,
+                    SaveEngine.DEFAULT_IO_PER_DISK, true));
+        }
         d.setView((NikkiFrame) n.getView());
         n.start();
+        startup.logTime("Window shown");
+        startup.warmUp();
     }
 }
@@ -19,10 +19,13 @@ package de.brazzy.nikki
 
 import de.brazzy.nikki.view.Dialogs;
 import de.brazzy.nikki.view.ImageRenderer;
+import de.brazzy.nikki.view.ThumbnailCache;
+import de.brazzy.nikki.view.ThumbnailLoader;
 import de.brazzy.nikki.view.NikkiFrame
 import de.brazzy.nikki.model.Image;
 import de.brazzy.nikki.model.NikkiModel
 import de.brazzy.nikki.model.Directory
+import de.brazzy.nikki.model.SaveEngine
 import javax.swing.event.ListSelectionListener
 import javax.swing.DefaultListModel
 import javax.swing.table.DefaultTableModel
@@ -32,6 +35,7 @@ import javax.swing.JOptionPane
 import java.awt.event.ActionListener
 import java.awt.event.WindowAdapter
 import java.beans.PropertyChangeListener
+import java.util.concurrent.Future
 import java.util.zip.ZipOutputStream
 
 
@@ -66,6 +70,38 @@ public class Nikki{
     /** assigns timezones to waypoints*/
     def timezoneFinder
 
+    /** supplies {@link #timezoneFinder} while it is loaded in the background */
+    Future<TimezoneFinder> timezoneFinderFuture
+
+    /** where scan index files are kept, null if they should not be used */
+    File scanIndexDir
+
+    /**
+     * milliseconds between checks of the selected directory for changed
+     * files, 0 to disable
+     */
+    long watchInterval
+
+    /** whether thumbnails are read only when they are displayed */
+    boolean lazyThumbnails
+
+    /** writes image data, limiting the number of concurrent writes per disk */
+    SaveEngine saveEngine = new SaveEngine()
+
+    /**
+     * Shows the button for embedding sidecar data only when the engine
+     * saves to sidecar files
+     */
+    void setSaveEngine(SaveEngine engine) {
+        this.@saveEngine = engine
+        if(view) {
+            view.embedButton.visible = engine.sidecar
+        }
+    }
+
+    /** keeps the selected directory current */
+    private DirectoryWatcher watcher
+
     private copyListener = {
         view.dayList.repaint()
     } as ActionListener
@@ -73,6 +109,8 @@ public class Nikki{
     private selectDirectoryAction = {
         it ->
         def sel = view.dirList.selectedValue
+        watcher?.stop()
+        watcher = null
         if(sel) {
             view.dayList.model = sel
         }
@@ -82,6 +120,7 @@ public class Nikki{
         view.deleteButton.enabled = (sel != null)
         view.scanButton.enabled = (sel != null)
         view.saveButton.enabled = (sel != null)
+        view.embedButton.enabled = (sel != null)
         if(sel){
             if(sel.size > 0){
                 view.dayList.selectedIndex = 0
@@ -131,7 +170,8 @@ public class Nikki{
     }
 
     private scanAction = {
-        def scanner = new DirectoryScanner(finder:timezoneFinder, parserFactory:parserFactory)
+        def scanner = new DirectoryScanner(finder:timezoneFinder, finderFuture:timezoneFinderFuture,
+                parserFactory:parserFactory, indexDir:scanIndexDir, lazyThumbnails:lazyThumbnails)
         def prevSelected = view.dayList.selectedValue
         def callback = {
             if(prevSelected){
@@ -139,15 +179,34 @@ public class Nikki{
             } else if(view.dirList.selectedValue.size > 0){
                 view.dayList.selectedIndex = 0
             }
+            startWatcher()
         }
 
         ScanWorker worker = new ScanWorker(view.dirList.selectedValue, dialogs, scanner, callback)
         dialogs.registerWorker(worker)
     }
 
+    private startWatcher(){
+        watcher?.stop()
+        watcher = null
+        if(watchInterval > 0 && view.dirList.selectedValue){
+            def scanner = new DirectoryScanner(finder:timezoneFinder, finderFuture:timezoneFinderFuture,
+                    parserFactory:parserFactory, lazyThumbnails:lazyThumbnails)
+            watcher = new DirectoryWatcher(dir: view.dirList.selectedValue,
+                    scanner: scanner, interval: watchInterval)
+            watcher.start()
+        }
+    }
+
     private saveAction = {
         view.imageTable.editorComponent?.getValue()
-        SaveWorker worker = new SaveWorker(view.dirList.selectedValue, dialogs)
+        SaveWorker worker = new SaveWorker(view.dirList.selectedValue, dialogs, saveEngine)
+        dialogs.registerWorker(worker)
+    }
+
+    private embedAction = {
+        view.imageTable.editorComponent?.getValue()
+        EmbedWorker worker = new EmbedWorker(view.dirList.selectedValue, dialogs, saveEngine)
         dialogs.registerWorker(worker)
     }
 
@@ -206,7 +265,7 @@ public class Nikki{
             if(modifiedDirs) {
                 switch(dialogs.confirm(Texts.Dialogs.UNSAVED_MESSAGE, JOptionPane.YES_NO_CANCEL_OPTION)) {
                     case ConfirmResult.YES:
-                        SaveExitWorker worker = new SaveExitWorker(modifiedDirs, dialogs)
+                        SaveExitWorker worker = new SaveExitWorker(modifiedDirs, dialogs, saveEngine)
                         dialogs.registerWorker(worker);
                         break;
                     case ConfirmResult.NO:
@@ -241,6 +300,8 @@ public class Nikki{
         view.deleteButton.actionPerformed = deleteAction
         view.scanButton.actionPerformed = scanAction
         view.saveButton.actionPerformed = saveAction
+        view.embedButton.actionPerformed = embedAction
+        view.embedButton.visible = saveEngine.sidecar
         view.dayList.addListSelectionListener(selectDayAction)
         view.imageSortOrder.addActionListener(sortOrderAction)
         view.exportButton.actionPerformed = exportAction
@@ -250,8 +311,10 @@ public class Nikki{
         view.frame.addWindowListener(closeListener)
 
         def clipboard = new Image[1];
-        view.imageTable.setDefaultRenderer(Object.class, new ImageRenderer(dialogs, clipboard, copyListener))
-        view.imageTable.setDefaultEditor(Object.class, new ImageRenderer(dialogs, clipboard, copyListener))
+        def thumbnails = new ThumbnailCache()
+        view.imageTable.setDefaultRenderer(Object.class, new ImageRenderer(dialogs, clipboard, copyListener, thumbnails))
+        view.imageTable.setDefaultEditor(Object.class, new ImageRenderer(dialogs, clipboard, copyListener, thumbnails))
+        new ThumbnailLoader().watch(view.imageTable)
     }
 
     /**
@@ -19,12 +19,14 @@ package de.brazzy.nikki;
  */
 
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.JOptionPane;
 
 import org.apache.log4j.Logger;
 
 import de.brazzy.nikki.model.Directory;
+import de.brazzy.nikki.model.SaveEngine;
 import de.brazzy.nikki.util.ConfirmResult;
 import de.brazzy.nikki.util.NikkiWorker;
 import de.brazzy.nikki.util.Texts;
@@ -32,18 +34,27 @@ import de.brazzy.nikki.util.Texts.Dialogs.Save;
 import de.brazzy.nikki.view.Dialogs;
 
 /**
- * Saves all image data to EXIF headers before exiting the application
+ * Saves all image data to EXIF headers before exiting the application. All
+ * directories are saved together, so that their images are written in
+ * parallel.
  * 
  * @author Michael Borgwardt
  */
 public class SaveExitWorker extends NikkiWorker {
     private List<Directory> dirs;
     private Dialogs dialogs;
+    private SaveEngine engine;
 
     public SaveExitWorker(List<Directory> dirs, Dialogs dialogs) {
+        this(dirs, dialogs, new SaveEngine());
+    }
+
+    public SaveExitWorker(List<Directory> dirs, Dialogs dialogs,
+            SaveEngine engine) {
         super(Texts.Dialogs.Save.PROGRESS_HEADER);
         this.dirs = dirs;
         this.dialogs = dialogs;
+        this.engine = engine;
     }
 
     @Override
@@ -51,8 +62,8 @@ public class SaveExitWorker extends NikkiWorker {
         Thread.currentThread().setUncaughtExceptionHandler(
                 dialogs.getExceptionHandler());
         boolean errorOccurred = false;
-        for (Directory dir : dirs) {
-            if (dir.save(this).size() > 0) {
+        for (Map<String, Exception> e : engine.save(dirs, this).values()) {
+            if (e.size() > 0) {
                 errorOccurred = true;
             }
         }
@@ -21,6 +21,7 @@ package de.brazzy.nikki;
 import java.util.Map;
 
 import de.brazzy.nikki.model.Directory;
+import de.brazzy.nikki.model.SaveEngine;
 import de.brazzy.nikki.util.NikkiWorker;
 import de.brazzy.nikki.util.Texts;
 import de.brazzy.nikki.view.Dialogs;
@@ -33,17 +34,23 @@ import de.brazzy.nikki.view.Dialogs;
 public class SaveWorker extends NikkiWorker {
     private Directory dir;
     private Dialogs dialogs;
+    private SaveEngine engine;
     private Map<String, Exception> exceptions;
 
     public SaveWorker(Directory dir, Dialogs dialogs) {
+        this(dir, dialogs, new SaveEngine());
+    }
+
+    public SaveWorker(Directory dir, Dialogs dialogs, SaveEngine engine) {
         super(Texts.Dialogs.Save.PROGRESS_HEADER);
         this.dir = dir;
         this.dialogs = dialogs;
+        this.engine = engine;
     }
 
     @Override
     protected Void doInBackground() throws Exception {
-        exceptions = dir.save(this);
+        exceptions = dir.save(this, engine);
         return null;
     }
 
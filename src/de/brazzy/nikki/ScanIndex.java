@@ -0,0 +1,317 @@
+package de.brazzy.nikki;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+
+import de.brazzy.nikki.model.Cardinal;
+import de.brazzy.nikki.model.GeoCoordinate;
+import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.model.ImageReader;
+import de.brazzy.nikki.model.Waypoint;
+import de.brazzy.nikki.util.TimezoneMissingException;
+
+/**
+ * Persistent cache of the data read from the image files in one directory,
+ * so that files which have not changed since the last scan (same size and
+ * modification time) need not be parsed again.
+ *
+ * @author Michael Borgwardt
+ */
+public class ScanIndex {
+    private static final int FORMAT_VERSION = 1;
+
+    private File indexFile;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean changed;
+
+    /**
+     * Data of one image file, as produced by {@link ImageReader#createImage()}
+     */
+    private static class Entry {
+        long size;
+        long lastModified;
+        boolean thumbnailNew;
+        String exifZone;
+        String localTime;
+        String title;
+        String description;
+        boolean export;
+        boolean hasWaypoint;
+        Cardinal latDirection;
+        double latMagnitude;
+        Cardinal lonDirection;
+        double lonMagnitude;
+        byte[] thumbnail;
+    }
+
+    /**
+     * @param indexDir
+     *            directory in which index files are kept
+     * @param directory
+     *            image directory to be indexed
+     * @return file in which the index for the given directory is kept
+     */
+    public static File indexFileFor(File indexDir, File directory) {
+        String path = directory.getAbsolutePath();
+        return new File(indexDir, path.replaceAll("[^\\w]", "_") + "_"
+                + Integer.toHexString(path.hashCode()) + ".idx");
+    }
+
+    /**
+     * Loads the index from the given file, if it exists and is readable
+     */
+    public ScanIndex(File indexFile) {
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                Logger.getLogger(getClass()).warn(
+                        "Error reading scan index " + indexFile, e);
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * @param file
+     *            image file
+     * @param scanZone
+     *            time zone to use when the image has none in its EXIF data
+     * @return Image constructed from index data, null if the file is not
+     *         indexed or has changed since
+     * @throws TimezoneMissingException
+     *             if the image has no time zone in its EXIF data and scanZone
+     *             is null
+     */
+    public synchronized Image get(File file, DateTimeZone scanZone)
+            throws TimezoneMissingException {
+        Entry e = entries.get(file.getName());
+        if (e == null || e.size != file.length()
+                || e.lastModified != file.lastModified()) {
+            return null;
+        }
+        DateTimeZone zone = e.exifZone != null ? DateTimeZone
+                .forID(e.exifZone) : scanZone;
+        if (zone == null) {
+            throw new TimezoneMissingException();
+        }
+        DateTime time = e.localTime == null ? null : new LocalDateTime(
+                e.localTime).toDateTime(zone);
+
+        Image image = new Image();
+        image.setFileName(file.getName());
+        image.setThumbnail(e.thumbnail);
+        image.setThumbnailPending(e.thumbnail == null);
+        if (e.hasWaypoint) {
+            Waypoint wp = new Waypoint();
+            wp.setTimestamp(time);
+            wp.setLatitude(coordinate(e.latDirection, e.latMagnitude));
+            wp.setLongitude(coordinate(e.lonDirection, e.lonMagnitude));
+            image.setWaypoint(wp);
+        }
+        image.setTitle(e.title);
+        image.setDescription(e.description);
+        image.setExport(e.export);
+        image.setTime(time);
+        image.setModified(e.thumbnailNew);
+        return image;
+    }
+
+    private static GeoCoordinate coordinate(Cardinal direction,
+            double magnitude) {
+        if (direction == null) {
+            return null;
+        }
+        GeoCoordinate c = new GeoCoordinate();
+        c.setDirection(direction);
+        c.setMagnitude(magnitude);
+        return c;
+    }
+
+    /**
+     * Adds or replaces the data for an image that has just been read.
+     * Images that could not be read are not indexed.
+     */
+    public synchronized void put(File file, ImageReader reader, Image image) {
+        if (reader.isReadError()) {
+            entries.remove(file.getName());
+            return;
+        }
+        Entry e = new Entry();
+        e.size = file.length();
+        e.lastModified = file.lastModified();
+        e.thumbnailNew = Boolean.TRUE.equals(reader.isThumbnailNew());
+        DateTimeZone exifZone = reader.getExifTimeZone();
+        e.exifZone = exifZone == null ? null : exifZone.getID();
+        e.localTime = image.getTime() == null ? null : image.getTime()
+                .toLocalDateTime().toString();
+        e.title = image.getTitle();
+        e.description = image.getDescription();
+        e.export = image.getExport();
+        Waypoint wp = image.getWaypoint();
+        if (wp != null) {
+            e.hasWaypoint = true;
+            if (wp.getLatitude() != null) {
+                e.latDirection = wp.getLatitude().getDirection();
+                e.latMagnitude = wp.getLatitude().getMagnitude();
+            }
+            if (wp.getLongitude() != null) {
+                e.lonDirection = wp.getLongitude().getDirection();
+                e.lonMagnitude = wp.getLongitude().getMagnitude();
+            }
+        }
+        e.thumbnail = image.getThumbnail();
+        entries.put(file.getName(), e);
+        changed = true;
+    }
+
+    /**
+     * Removes all entries for files not in the given collection
+     */
+    public synchronized void retain(Collection<String> fileNames) {
+        changed |= entries.keySet().retainAll(fileNames);
+    }
+
+    /**
+     * Writes the index back to its file if it has been changed
+     */
+    public synchronized void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+        indexFile.getParentFile().mkdirs();
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                writeString(out, me.getKey());
+                out.writeLong(e.size);
+                out.writeLong(e.lastModified);
+                out.writeBoolean(e.thumbnailNew);
+                writeString(out, e.exifZone);
+                writeString(out, e.localTime);
+                writeString(out, e.title);
+                writeString(out, e.description);
+                out.writeBoolean(e.export);
+                out.writeBoolean(e.hasWaypoint);
+                writeString(out, e.latDirection == null ? null
+                        : e.latDirection.name());
+                out.writeDouble(e.latMagnitude);
+                writeString(out, e.lonDirection == null ? null
+                        : e.lonDirection.name());
+                out.writeDouble(e.lonMagnitude);
+                writeBytes(out, e.thumbnail);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Could not delete " + indexFile);
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("Could not rename " + tmpFile);
+        }
+        changed = false;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry();
+                String fileName = readString(in);
+                e.size = in.readLong();
+                e.lastModified = in.readLong();
+                e.thumbnailNew = in.readBoolean();
+                e.exifZone = readString(in);
+                e.localTime = readString(in);
+                e.title = readString(in);
+                e.description = readString(in);
+                e.export = in.readBoolean();
+                e.hasWaypoint = in.readBoolean();
+                String dir = readString(in);
+                e.latDirection = dir == null ? null : Cardinal.valueOf(dir);
+                e.latMagnitude = in.readDouble();
+                dir = readString(in);
+                e.lonDirection = dir == null ? null : Cardinal.valueOf(dir);
+                e.lonMagnitude = in.readDouble();
+                e.thumbnail = readBytes(in);
+                entries.put(fileName, e);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes("UTF-8"));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
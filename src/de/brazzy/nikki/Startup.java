@@ -0,0 +1,132 @@
+package de.brazzy.nikki;
+
+/*   
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+import groovy.lang.GroovySystem;
+
+import org.apache.log4j.Logger;
+
+import de.brazzy.nikki.model.Day;
+import de.brazzy.nikki.model.Directory;
+import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.model.Waypoint;
+import de.brazzy.nikki.model.WaypointFile;
+import de.brazzy.nikki.util.TimezoneFinder;
+import de.micromata.opengis.kml.v_2_2_0.KmlFactory;
+
+/**
+ * Moves the expensive parts of starting the app off the path to the first
+ * window, and logs how long it took to reach each stage:
+ * <ul>
+ * <li>The TimezoneFinder is loaded on a separate thread and handed out as a
+ * Future, so that only a scan started before it is ready has to wait.</li>
+ * <li>After the window is shown, JAXB (used by the KML export), the ImageIO
+ * plugins (used for thumbnails) and the Groovy metaclasses of the model are
+ * initialized on a low-priority thread, so that the first export and the
+ * first thumbnails do not pay for it.</li>
+ * </ul>
+ * 
+ * @author Michael Borgwardt
+ */
+public class Startup {
+    /** Groovy classes whose metaclasses are created by {@link #warmUp()} */
+    private static final Class<?>[] GROOVY_CLASSES = { Nikki.class,
+            DirectoryScanner.class, Directory.class, Day.class, Image.class,
+            Waypoint.class, WaypointFile.class };
+
+    private final long start = System.nanoTime();
+
+    /**
+     * Logs the time since this object was created
+     * 
+     * @param stage
+     *            reached at this time
+     */
+    public void logTime(String stage) {
+        Logger.getLogger(getClass()).info(
+                stage + " after " + (System.nanoTime() - start) / 1000000
+                        + " ms");
+    }
+
+    /**
+     * Starts loading the default TimezoneFinder in the background
+     */
+    public Future<TimezoneFinder> loadTimezoneFinder() {
+        FutureTask<TimezoneFinder> task = new FutureTask<TimezoneFinder>(
+                new Callable<TimezoneFinder>() {
+                    @Override
+                    public TimezoneFinder call() throws IOException {
+                        try {
+                            TimezoneFinder finder = TimezoneFinder
+                                    .createDefault();
+                            logTime("Time zones loaded");
+                            return finder;
+                        } catch (IOException ex) {
+                            Logger.getLogger(Startup.class).error(
+                                    "Error loading time zones", ex);
+                            throw ex;
+                        }
+                    }
+                });
+        Thread t = new Thread(task, "TimezoneFinder loader");
+        t.setDaemon(true);
+        t.start();
+        return task;
+    }
+
+    /**
+     * Initializes libraries used later on a low-priority thread
+     * 
+     * @return the thread, already started
+     */
+    public Thread warmUp() {
+        Thread t = new Thread("Warm-up") {
+            @Override
+            public void run() {
+                try {
+                    for (Class<?> c : GROOVY_CLASSES) {
+                        GroovySystem.getMetaClassRegistry().getMetaClass(c);
+                    }
+                    logTime("Metaclasses created");
+                    ImageIO.getImageReadersByFormatName("jpeg").hasNext();
+                    ImageIO.getImageWritersByFormatName("jpeg").hasNext();
+                    logTime("ImageIO plugins loaded");
+                    KmlFactory.createKml().marshal(new ByteArrayOutputStream());
+                    logTime("JAXB initialized");
+                } catch (Exception ex) {
+                    Logger.getLogger(Startup.class).warn("Error in warm-up",
+                            ex);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+        return t;
+    }
+}
@@ -68,7 +68,7 @@ class Day extends AbstractTableModel implements Comparable<Day> {
     private ImageSortField imageSortOrder
 
     /** Waypoints recorded on this day */
-    final SortedSet<Waypoint> waypoints = new TreeSet()
+    final WaypointSet waypoints = new WaypointSet()
 
     /** Date represented by this day */
     final LocalDate date
@@ -153,17 +153,11 @@ class Day extends AbstractTableModel implements Comparable<Day> {
                 .withWidth(4.0)
                 .withColor("801977FF")
 
-        int count = 0;
         out.method = ZipOutputStream.STORED
         createDirEntry(out, "images/");
         createDirEntry(out, "thumbs/");
 
-        def imgIndex = 0;
-        for(Image image : images) {
-            worker?.labelUpdate = image.fileName
-            image.exportTo(out, doc, imgIndex++)
-            worker?.progress = new Integer((int)(++count / images.size * 100))
-        }
+        new ImageExporter().export(images.asList(), doc, out, worker)
 
         exportWaypoints(doc)
 
@@ -252,21 +246,23 @@ class Day extends AbstractTableModel implements Comparable<Day> {
         def result = new TreeSet()
         result.addAll(images.asList().waypoint)
         if(waypoints){
-            def previous = waypoints.first()
-            result.add(previous)
-            def previousAdded = previous
-            for(Waypoint wp : waypoints){
-                def dist = previousAdded.distanceInMeters(wp)
-                def time = new Duration(previous.timestamp, wp.timestamp)
+            // works on the positions, creating Waypoints only for those exported
+            result.add(waypoints.first())
+            int previous = 0
+            int previousAdded = 0
+            for(int i=0; i<waypoints.size(); i++){
+                def dist = waypoints.distanceInMeters(previousAdded, i)
+                def time = new Duration(waypoints.getTime(previous), waypoints.getTime(i))
 
                 if(dist >= WAYPOINT_MERGE_THRESHOLD_DISTANCE){
+                    Waypoint wp = waypoints.get(i)
                     result.add(wp)
-                    previousAdded = wp
+                    previousAdded = i
                     if(time.isLongerThan(WAYPOINT_NEWLINE_THRESHOLD_TIME)){
                         wp.startNewLine = true
                     }
                 }
-                previous = wp
+                previous = i
             }
         }
         if(result){
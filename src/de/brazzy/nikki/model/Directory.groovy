@@ -19,10 +19,10 @@ package de.brazzy.nikki.model;
 
 
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingWorker
 
-import org.apache.log4j.Logger;
 import org.joda.time.LocalDate;
 import org.joda.time.ReadableInstant;
 import org.joda.time.ReadablePeriod;
@@ -51,7 +51,7 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
     Map<String, WaypointFile> waypointFiles = [:]
     
     /** All Waypoints found in this directory */
-    SortedSet<Waypoint> waypoints = new TreeSet<Waypoint>()
+    WaypointSet waypoints = new WaypointSet()
     
     /**
      * This directory's filesystem path.
@@ -60,6 +60,15 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
      */
     File path
     
+    /** The Days in this directory, keyed on their date */
+    private final Map<LocalDate, Day> dayIndex = new HashMap<LocalDate, Day>()
+    
+    /** Images whose data has changed since it was last saved */
+    private final Set<Image> modifiedImages = Collections.synchronizedSet(new LinkedHashSet<Image>())
+    
+    /** Number of save operations currently writing to the files */
+    private final AtomicInteger saving = new AtomicInteger()
+    
     public String toString() {
         path.name+" ("+images.size()+", "+waypointFiles.size()+")"
     }
@@ -72,22 +81,67 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
         if(waypoints && !image.waypoint){
             image.geotag(waypoints)
         }
-        def timestamp = image.time
-        if(image.waypoint?.timestamp?.zone){
-            timestamp = timestamp?.withZone(image.waypoint?.timestamp?.zone)
-        }
-        def date = timestamp?.toLocalDate()
+        def date = dateOf(image)
         def day = getDay(date)
         if(!day) {
             day = new Day(date:date, directory: this)
             this.add(day)
         } 
         day.images.add(image)
+        setDay(image, day)
+        if(image.modified) {
+            modifiedImages.add(image)
+        }
+        return day
+    }
+    
+    /**
+     * Adds several Images, creating Days as necessary. Equivalent to
+     * {@link #addImage(Image)} for each, but each Day is sorted only once.
+     */
+    public void addImages(Collection<Image> newImages) {
+        if(waypoints){
+            new Geotagger(waypoints).geotag(newImages.findAll{ !it.waypoint }, Seconds.seconds(0))
+        }
+        Map<LocalDate, List<Image>> byDate = new HashMap<LocalDate, List<Image>>()
+        for(Image image in newImages){
+            this.images[image.fileName] = image
+            def date = dateOf(image)
+            def list = byDate.get(date)
+            if(list == null){
+                list = []
+                byDate.put(date, list)
+            }
+            list.add(image)
+        }
         
+        addAll(byDate.keySet().findAll{ !getDay(it) }.collect{
+            new Day(date:it, directory: this)
+        })
+        for(entry in byDate.entrySet()){
+            Day day = getDay(entry.key)
+            day.images.addAll(entry.value)
+            for(Image image in entry.value){
+                setDay(image, day)
+                if(image.modified) {
+                    modifiedImages.add(image)
+                }
+            }
+        }
+    }
+    
+    private LocalDate dateOf(Image image) {
+        def timestamp = image.time
+        if(image.waypoint?.timestamp?.zone){
+            timestamp = timestamp?.withZone(image.waypoint?.timestamp?.zone)
+        }
+        return timestamp?.toLocalDate()
+    }
+    
+    private static void setDay(Image image, Day day) {
         def modified = image.modified
         image.day = day
         image.modified = modified
-        return day
     }
     
     /**
@@ -104,6 +158,7 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
             day.images.remove(image)
             
             image.day = null
+            modifiedImages.remove(image)
             if(day.images.size() == 0 && day.waypoints.size() == 0) {
                 remove(day)
             }
@@ -136,13 +191,30 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
      * Returns the Day in this Directory that corresponds to the given date
      */
     public Day getDay(LocalDate date) {
-        int index = Collections.binarySearch(dataList, new Day(date:date))
-        if(index >= 0) {
-            return getAt(index)
+        return dayIndex.get(date)
+    }
+    
+    @Override
+    public void add(Day day) {
+        super.add(day)
+        dayIndex.put(day.date, day)
+    }
+    
+    @Override
+    public void addAll(Collection<Day> days) {
+        super.addAll(days)
+        for(Day day in days){
+            dayIndex.put(day.date, day)
         }
-        else {
-            return null
+    }
+    
+    @Override
+    public boolean remove(Day day) {
+        if(super.remove(day)) {
+            dayIndex.remove(day.date)
+            return true
         }
+        return false
     }
     
     /**
@@ -152,32 +224,64 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
      * @return any exceptions encountered during the operation, keyed on file name
      */
     public Map<String, Exception> save(NikkiWorker worker) {
-        worker?.progress = 0
-        def count = 0
-        def exceptions = [:]
-        for(Image image in images.values()){
-            worker?.labelUpdate = image.fileName
-            try {
-                image.save(this.path)
-            }
-            catch(Exception ex) {
-                Logger.getLogger(getClass()).error(
-                        "Error saving data in image " + image.fileName, ex)
-                exceptions[image.fileName]=ex
-            }
-            worker?.progress = new Integer((int)(++count/images.size() * 100))
-        }
-        worker?.progress = 0
-        return exceptions
+        return save(worker, new SaveEngine())
+    }
+
+    /**
+     * Saves the modified images using the given engine
+     *
+     * @return exceptions that occurred while saving, keyed by file name
+     */
+    public Map<String, Exception> save(NikkiWorker worker, SaveEngine engine) {
+        return engine.save(this, worker)
     }
     
     public boolean isModified() {
-        for(entry in images.values()) {
-            if(entry.modified) {
-                return true
-            }
+        return !modifiedImages.isEmpty()
+    }
+    
+    /**
+     * @return whether files in this directory are currently being written
+     *         by a {@link SaveEngine}
+     */
+    public boolean isSaving() {
+        return saving.get() > 0
+    }
+    
+    /**
+     * Called by a {@link SaveEngine} before writing files in this directory
+     */
+    public void beginSave() {
+        saving.incrementAndGet()
+    }
+    
+    /**
+     * Called by a {@link SaveEngine} after writing files in this directory,
+     * even if the writing failed
+     */
+    public void endSave() {
+        saving.decrementAndGet()
+    }
+    
+    /**
+     * @return the images whose data has changed since it was last saved
+     */
+    public List<Image> getModifiedImages() {
+        synchronized(modifiedImages) {
+            return new ArrayList<Image>(modifiedImages)
+        }
+    }
+    
+    /**
+     * Called by an Image in this Directory when its modified flag is set
+     */
+    public void modifiedChanged(Image image, boolean modified) {
+        if(modified) {
+            modifiedImages.add(image)
+        }
+        else {
+            modifiedImages.remove(image)
         }
-        return false
     }
     
     /**
@@ -185,12 +289,59 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
      * to correct Day, creating new Day if necessary
      */
     public addWaypointFile(WaypointFile wf) {
-        for(Waypoint wp in wf.waypoints) {
-            addWaypoint(wp)
+        if(wf.track) {
+            addTrack(wf.track)
+        }
+        else {
+            for(Waypoint wp in wf.waypoints) {
+                addWaypoint(wp)
+            }
         }
         waypointFiles[wf.fileName] = wf
     }
     
+    /**
+     * Adds the points of a Track to each Day in one batch, without
+     * creating Waypoints for them
+     */
+    private void addTrack(Track track) {
+        for(entry in track.pointsByDate.entrySet()) {
+            Day d = getDay(entry.key)
+            if(!d) {
+                d = new Day(directory: this, date: entry.key)
+                add(d)
+            }
+            d.waypoints.addTrack(track, entry.value)
+        }
+        waypoints.addTrack(track)
+        for(Waypoint wp in track.createdWaypoints) {
+            wp.day = getDay(wp.timestamp.toLocalDate())
+        }
+    }
+    
+    /**
+     * Removes waypoint file and all waypoints therein, deletes Days left empty
+     */
+    public void removeWaypointFile(WaypointFile wf) {
+        waypointFiles.remove(wf.fileName)
+        if(!wf.track) {
+            for(Waypoint wp in wf.waypoints) {
+                removeWaypoint(wp)
+            }
+            return
+        }
+        waypoints.removeTrack(wf.track)
+        for(Day day in new ArrayList<Day>(asList())) {
+            if(day.waypoints.removeTrack(wf.track) &&
+                    day.images.size() == 0 && day.waypoints.size() == 0) {
+                remove(day)
+            }
+        }
+        for(Waypoint wp in wf.track.createdWaypoints) {
+            wp.day = null
+        }
+    }
+    
     /**
      * Adds waypoint to correct Day, creating new Day if necessary
      */
@@ -207,13 +358,85 @@ class Directory extends ListDataModel<Day> implements Comparable<Directory> {
     }
     
     /**
-     * Re-geotags all images and reassigns them to different days if necessary
+     * Re-geotags all images and reassigns them to different days if necessary.
+     * Days whose images got a different waypoint fire a change event as well.
      */
     public void geotag(ReadablePeriod offset = Seconds.seconds(0)){
-        for(image in images.values()){
-            image.geotag(waypoints)
-            removeImage(image)
-            addImage(image)
+        Set<Day> changed = new LinkedHashSet<Day>()
+        if(waypoints){
+            Map<Image, Waypoint> previous = new IdentityHashMap<Image, Waypoint>()
+            for(Image image in images.values()){
+                previous.put(image, image.waypoint)
+            }
+            new Geotagger(waypoints).geotag(images.values(), offset)
+            for(Image image in images.values()){
+                if(image.day && !image.waypoint.is(previous.get(image))){
+                    changed.add(image.day)
+                }
+            }
+        }
+        regroup(images.values(), changed)
+    }
+    
+    /**
+     * Moves those of the given images whose date has changed, e.g. because
+     * geotagging has changed their time zone, to the corresponding Day.
+     * Each affected Day has its images removed and added in one batch and
+     * fires a single change event. Days left empty are deleted.
+     */
+    public void regroup(Collection<Image> moved) {
+        regroup(moved, Collections.emptySet())
+    }
+
+    /**
+     * @param changed Days that fire a change event even if none of their
+     *        images are moved
+     *
+     * @see #regroup(Collection)
+     */
+    public void regroup(Collection<Image> moved, Collection<Day> changed) {
+        Map<Day, List<Image>> byOldDay = new LinkedHashMap<Day, List<Image>>()
+        Map<LocalDate, List<Image>> byNewDate = new LinkedHashMap<LocalDate, List<Image>>()
+        for(Image image in moved){
+            def date = dateOf(image)
+            if(image.day?.date == date){
+                continue
+            }
+            if(image.day){
+                byOldDay.get(image.day, []).add(image)
+            }
+            byNewDate.get(date, []).add(image)
+        }
+        Set<Day> affected = new LinkedHashSet<Day>(changed)
+        if(!byNewDate && !affected){
+            return
+        }
+        
+        for(entry in byOldDay.entrySet()){
+            entry.key.images.removeAll(entry.value)
+            affected.add(entry.key)
+        }
+        addAll(byNewDate.keySet().findAll{ !getDay(it) }.collect{
+            new Day(date:it, directory: this)
+        })
+        for(entry in byNewDate.entrySet()){
+            Day day = getDay(entry.key)
+            day.images.addAll(entry.value)
+            for(Image image in entry.value){
+                setDay(image, day)
+            }
+            affected.add(day)
+        }
+        
+        for(Day day in affected){
+            if(day.images.size() == 0 && day.waypoints.size() == 0) {
+                remove(day)
+            }
+            else {
+                day.fireTableDataChanged()
+                int index = indexOf(day)
+                fireContentsChanged(this, index, index)
+            }
         }
     }
     
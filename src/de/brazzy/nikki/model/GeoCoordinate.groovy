@@ -35,6 +35,17 @@ public class GeoCoordinate implements Serializable{
      */
     double magnitude;
     
+    /**
+     * @param value signed magnitude
+     * @param latitude whether the value is a latitude rather than a longitude
+     */
+    public static GeoCoordinate fromValue(double value, boolean latitude) {
+        def direction = latitude ?
+                (value > 0 ? Cardinal.NORTH : Cardinal.SOUTH) :
+                (value > 0 ? Cardinal.EAST : Cardinal.WEST)
+        return new GeoCoordinate(magnitude: Math.abs(value), direction: direction)
+    }
+    
     /**
      * @return Signed magnitude of this dimension
      */
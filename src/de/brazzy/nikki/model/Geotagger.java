@@ -0,0 +1,210 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.SortedSet;
+
+import org.joda.time.ReadablePeriod;
+
+/**
+ * Geotags many images at once. The images are sorted by time and then
+ * merged with the waypoint timestamps of a {@link WaypointSet} in a single
+ * pass, split into chunks that are processed in parallel when there are
+ * enough images. Waypoint objects are created only for the waypoints that
+ * are chosen.
+ *
+ * @author Michael Borgwardt
+ */
+public class Geotagger {
+    /** Minimum number of images worth merging on a separate thread */
+    public static final int MIN_CHUNK_SIZE = 4096;
+
+    private final WaypointSet waypoints;
+    private final int threads;
+
+    public Geotagger(SortedSet<Waypoint> waypoints) {
+        this(waypoints, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param waypoints
+     *            must not be modified while the Geotagger is in use; other
+     *            sets than {@link WaypointSet} are copied
+     * @param threads
+     *            maximum number of threads to use for one call to
+     *            {@link #geotag(Collection, ReadablePeriod)}
+     */
+    public Geotagger(SortedSet<Waypoint> waypoints, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        if (waypoints instanceof WaypointSet) {
+            this.waypoints = (WaypointSet) waypoints;
+        } else {
+            this.waypoints = new WaypointSet(waypoints);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the Waypoint closest to the given time, null if there are none
+     */
+    public Waypoint find(long millis) {
+        if (waypoints.isEmpty()) {
+            return null;
+        }
+        return waypoints.get(choose(millis, waypoints.lowerBound(millis)));
+    }
+
+    /**
+     * Finds and sets the Waypoint that is closest in time to the image's
+     * timestamp
+     *
+     * @see #geotag(Collection, ReadablePeriod)
+     */
+    public void geotag(Image image, ReadablePeriod offset) {
+        geotag(Collections.singletonList(image), offset);
+    }
+
+    /**
+     * Finds and sets the Waypoint that is closest in time to each image's
+     * timestamp. Images without a timestamp are left unchanged.
+     *
+     * @param offset
+     *            to adjust for incorrectly set camera time
+     */
+    public void geotag(Collection<Image> images, ReadablePeriod offset) {
+        if (waypoints.isEmpty()) {
+            return;
+        }
+        final Image[] sorted = new Image[images.size()];
+        final long[] imageTimes = new long[sorted.length];
+        int count = 0;
+        for (Image image : images) {
+            if (image.getTime() != null) {
+                sorted[count] = image;
+                imageTimes[count] = image.getTime().plus(offset).getMillis();
+                count++;
+            }
+        }
+        sortByTime(sorted, imageTimes, count);
+
+        int chunks = Math.max(1, Math.min(threads, count / MIN_CHUNK_SIZE));
+        if (chunks == 1) {
+            merge(sorted, imageTimes, 0, count);
+            return;
+        }
+
+        Thread[] workers = new Thread[chunks - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int start = (int) ((long) count * i / chunks);
+            final int end = (int) ((long) count * (i + 1) / chunks);
+            workers[i] = new Thread("Geotagger") {
+                @Override
+                public void run() {
+                    merge(sorted, imageTimes, start, end);
+                }
+            };
+            workers[i].start();
+        }
+        merge(sorted, imageTimes, (int) ((long) count * (chunks - 1) / chunks),
+                count);
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while geotagging", e);
+        }
+    }
+
+    /**
+     * Sorts the first count images together with their timestamps
+     */
+    private static void sortByTime(Image[] images, final long[] imageTimes,
+            int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = imageTimes[a];
+                long tb = imageTimes[b];
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        Image[] imageCopy = images.clone();
+        long[] timeCopy = imageTimes.clone();
+        for (int i = 0; i < count; i++) {
+            images[i] = imageCopy[order[i]];
+            imageTimes[i] = timeCopy[order[i]];
+        }
+    }
+
+    /**
+     * Walks through the sorted images from start to end and the waypoints
+     * at the same time
+     */
+    private void merge(Image[] images, long[] imageTimes, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        int next = waypoints.lowerBound(imageTimes[start]);
+        for (int i = start; i < end; i++) {
+            long time = imageTimes[i];
+            while (next < waypoints.size() && waypoints.getTime(next) < time) {
+                next++;
+            }
+            Waypoint result = waypoints.get(choose(time, next));
+            Image image = images[i];
+            Waypoint old = image.getWaypoint();
+            if (old == null
+                    || old.getTimestamp().getMillis() != result.getTimestamp()
+                            .getMillis()) {
+                image.setWaypoint(result);
+                image.setModified(true);
+            }
+        }
+    }
+
+    /**
+     * @param next
+     *            index of the first waypoint not before the given time
+     * @return index of the nearest waypoint; when both neighbours are equally
+     *         far away in whole seconds, the earlier one
+     */
+    private int choose(long time, int next) {
+        if (next == waypoints.size()) {
+            return next - 1;
+        }
+        if (next == 0 || waypoints.getTime(next) == time) {
+            return next;
+        }
+        long distBefore = (time - waypoints.getTime(next - 1)) / 1000;
+        long distAfter = (waypoints.getTime(next) - time) / 1000;
+        return distBefore > distAfter ? next : next - 1;
+    }
+}
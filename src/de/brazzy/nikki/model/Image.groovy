@@ -69,6 +69,12 @@ class Image implements Serializable{
     /** Scaled-down version for display */
     byte[] thumbnail
 
+    /**
+     * Set while the thumbnail has not yet been read from the file,
+     * see {@link de.brazzy.nikki.view.ThumbnailLoader}
+     */
+    transient boolean thumbnailPending
+
     /** Determines whether the image will be part of an export to KMZ */
     boolean export
 
@@ -77,14 +83,22 @@ class Image implements Serializable{
      */
     void setProperty(String name, value) {
         if(name == "modified") {
-            this.modified = value
+            setModified(value)
             return
         }
         if(this[name]==value) {
             return
         }
-        this.modified = true
         this.@"$name"=value
+        setModified(true)
+    }
+
+    /**
+     * Keeps the set of modified images in the Directory current
+     */
+    void setModified(boolean modified) {
+        this.@modified = modified
+        day?.directory?.modifiedChanged(this, modified)
     }
 
     public String toString(){
@@ -100,11 +114,13 @@ class Image implements Serializable{
         if(time != this.time) {
             if(time?.toLocalDate() == this.time?.toLocalDate()) {
                 setTime(time)
+                setModified(true)
             }
             else {
                 def dir = day.directory
                 dir.removeImage(this)
                 setTime(time)
+                setModified(true)
                 dir.addImage(this)
             }
         }
@@ -124,12 +140,17 @@ class Image implements Serializable{
 
     /**
      * Saves the image data to the file's EXIF headers
+     *
+     * @return false if nothing was written, because the image was not
+     *         modified or the file already contained the same data
      */
-    public void save(File directory) {
+    public boolean save(File directory) {
+        def written = false
         if(modified) {
-            new ImageWriter(this, directory).saveImage()
+            written = new ImageWriter(this, directory).saveImage()
         }
-        modified = false
+        setModified(false)
+        return written
     }
 
     /**
@@ -156,13 +177,14 @@ class Image implements Serializable{
                 ])
 
         NumberFormat nf = NumberFormat.getIntegerInstance();
-        day.waypoints.each{ Waypoint point ->
+        WaypointSet points = day.waypoints
+        for(int i=0; i<points.size(); i++){
             doc.createAndAddPlacemark()
-                    .withName(nf.format((point.timestamp.millis-time.millis)/1000))
+                    .withName(nf.format((points.getTime(i)-time.millis)/1000))
                     .withVisibility(true)
                     .createAndSetPoint()
                     .withCoordinates([
-                        new Coordinate(point.longitude.value, point.latitude.value)
+                        new Coordinate(points.getLongitude(i), points.getLatitude(i))
                     ])
         }
 
@@ -181,41 +203,7 @@ class Image implements Serializable{
             return;
         }
 
-        def imagetime = this.time.plus(offset)
-        Waypoint imageTimestamp = new Waypoint(timestamp: imagetime)
-        def beforeSet = waypoints.headSet(imageTimestamp)
-        def afterSet = waypoints.tailSet(imageTimestamp)
-        def result
-
-        if(afterSet.isEmpty()) // after all WPs
-        {
-            result = beforeSet.last()
-        }
-        else if(beforeSet.isEmpty()) // before all WPs
-        {
-            result = afterSet.first()
-        }
-        else if(afterSet.first().compareTo(imageTimestamp) == 0) { // direct hit
-            result = afterSet.first()
-        }
-        else {
-            def before = beforeSet.last()
-            def after =  afterSet.first()
-            def distBefore = Seconds.secondsBetween(before.timestamp, imagetime)
-            def distAfter = Seconds.secondsBetween(imagetime, after.timestamp)
-
-            if(distBefore.isGreaterThan(distAfter)) {
-                result = after
-            }
-            else {
-                result = before
-            }
-        }
-
-        if(result.timestamp!=waypoint?.timestamp) {
-            waypoint = result
-            modified = true
-        }
+        new Geotagger(waypoints, 1).geotag(this, offset)
     }
 
     /**
@@ -227,27 +215,52 @@ class Image implements Serializable{
      */
     void exportTo(ZipOutputStream out, Document doc, int imgIndex) {
         if(export) {
-            def imgIndexFmt = new DecimalFormat("000 ");
-            Placemark pm = doc.createAndAddPlacemark()
-                    .withName(imgIndexFmt.format(imgIndex) + (title ?: ""))
-                    .withDescription(htmlForExport)
-                    .withVisibility(true)
-            pm.createAndSetPoint()
-                    .withCoordinates([
-                        new Coordinate(waypoint.longitude.value, waypoint.latitude.value)
-                    ])
-            pm.createAndAddStyle()
-                    .createAndSetIconStyle()
-                    .withScale(1.5) // adjusts default icon size (64) for out icon size (96)
-                    .createAndSetIcon()
-                    .withHref("thumbs/"+fileName.toLowerCase())
-
-            ImageReader reader = new ImageReader(new File(day.directory.path, fileName.toLowerCase()), null)
-            store(reader.scale(592, false, false), "images/"+fileName.toLowerCase(), out)
-            store(reader.scale(96, true, true), "thumbs/"+fileName.toLowerCase(), out)
+            addPlacemark(doc, imgIndex)
+            storeExport(renderExport(), out)
         }
     }
 
+    /**
+     * Adds the placemark for this image to a KML document
+     *
+     * @param imgIndex for display in title
+     */
+    void addPlacemark(Document doc, int imgIndex) {
+        def imgIndexFmt = new DecimalFormat("000 ");
+        Placemark pm = doc.createAndAddPlacemark()
+                .withName(imgIndexFmt.format(imgIndex) + (title ?: ""))
+                .withDescription(htmlForExport)
+                .withVisibility(true)
+        pm.createAndSetPoint()
+                .withCoordinates([
+                    new Coordinate(waypoint.longitude.value, waypoint.latitude.value)
+                ])
+        pm.createAndAddStyle()
+                .createAndSetIconStyle()
+                .withScale(1.5) // adjusts default icon size (64) for out icon size (96)
+                .createAndSetIcon()
+                .withHref("thumbs/"+fileName.toLowerCase())
+    }
+
+    /**
+     * Reads the image file and scales it for export. Does not change
+     * this image, so it can be called for several images in parallel.
+     *
+     * @return the scaled image and the thumbnail, as JPEG data
+     */
+    byte[][] renderExport() {
+        ImageReader reader = new ImageReader(new File(day.directory.path, fileName.toLowerCase()), null)
+        return [reader.scale(592, false, false), reader.scale(96, true, true)] as byte[][]
+    }
+
+    /**
+     * Writes the result of {@link #renderExport()} to a KMZ file
+     */
+    void storeExport(byte[][] renditions, ZipOutputStream out) {
+        store(renditions[0], "images/"+fileName.toLowerCase(), out)
+        store(renditions[1], "thumbs/"+fileName.toLowerCase(), out)
+    }
+
     /**
      * Stores one image
      *
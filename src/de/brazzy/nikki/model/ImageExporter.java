@@ -0,0 +1,158 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipOutputStream;
+
+import de.brazzy.nikki.util.NikkiWorker;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+
+/**
+ * Exports the images of a {@link Day} to a KMZ file as a pipeline: a thread
+ * pool decodes, scales and encodes the images, while the calling thread
+ * writes the results to the file in their original order. Only a limited
+ * number of images are scaled ahead of the writer, which bounds the memory
+ * used for finished images that wait to be written.
+ *
+ * @author Michael Borgwardt
+ */
+public class ImageExporter {
+    /** Default size of the thread pool */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime()
+            .availableProcessors();
+
+    private final int threads;
+    private final int maxInFlight;
+
+    public ImageExporter() {
+        this(DEFAULT_THREADS, 2 * DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads
+     *            size of the thread pool
+     * @param maxInFlight
+     *            maximum number of images being scaled or waiting to be
+     *            written
+     */
+    public ImageExporter(int threads, int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Adds a placemark to the document for each image that is to be
+     * exported, and writes its scaled versions to the file
+     *
+     * @param images
+     *            in the order in which they are numbered and written
+     * @param worker
+     *            for updating progress, may be null
+     */
+    public void export(List<Image> images, Document doc, ZipOutputStream out,
+            NikkiWorker worker) throws IOException {
+        int total = images.size();
+        for (int i = 0; i < total; i++) {
+            if (images.get(i).getExport()) {
+                images.get(i).addPlacemark(doc, i);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ImageExporter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            LinkedList<Future<byte[][]>> pending = new LinkedList<Future<byte[][]>>();
+            int submitted = 0;
+            for (int written = 0; written < total; written++) {
+                while (submitted < total && pending.size() < maxInFlight) {
+                    pending.add(submit(executor, images.get(submitted++)));
+                }
+                Image image = images.get(written);
+                if (worker != null) {
+                    worker.setLabelUpdate(image.getFileName());
+                }
+                byte[][] renditions = result(pending.removeFirst());
+                if (renditions != null) {
+                    image.storeExport(renditions, out);
+                }
+                if (worker != null) {
+                    worker.setProgressUpdate((written + 1) * 100 / total);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Future<byte[][]> submit(ExecutorService executor,
+            final Image image) {
+        return executor.submit(new Callable<byte[][]>() {
+            @Override
+            public byte[][] call() throws Exception {
+                return image.getExport() ? image.renderExport() : null;
+            }
+        });
+    }
+
+    private static byte[][] result(Future<byte[][]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause.getMessage(), cause);
+        }
+    }
+}
@@ -28,13 +28,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.Iterator;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.border.EtchedBorder;
 
 import mediautil.gen.Rational;
 import mediautil.image.jpeg.Entry;
-import mediautil.image.jpeg.Exif;
 import mediautil.image.jpeg.LLJTran;
 import mediautil.image.jpeg.LLJTranException;
 
@@ -46,6 +49,7 @@ import org.joda.time.DateTimeZone;
 import com.mortennobel.imagescaling.ResampleOp;
 import com.mortennobel.imagescaling.ThumpnailRescaleOp;
 
+import de.brazzy.nikki.util.ExifHeader;
 import de.brazzy.nikki.util.ImageDataIO;
 import de.brazzy.nikki.util.Texts;
 
@@ -70,25 +74,50 @@ public class ImageReader extends ImageDataIO {
     private DateTimeZone scanZone;
     private Rotation rotation;
     private BufferedImage mainImage;
+    private boolean mainImageFull;
     private Boolean thumbnailNew;
+    private boolean readError;
+
+    /** EXIF data, null if the file has none */
+    private ExifHeader header;
 
     /**
      * @param file
      *            to read from
      * @param zone
      *            to use when image does not contain time zone in EXIF
-     * @throws LLJTranException
      */
     public ImageReader(File file, DateTimeZone zone) {
-        super(file, LLJTran.READ_INFO);
-        this.file = file;
+        super(file);
         this.scanZone = zone;
+        try {
+            header = ExifHeader.read(file);
+            if (header != null
+                    && header.hasAppNote()
+                    && !ENTRY_NIKKI_CONTENT.equals(header
+                            .getAppNoteString(ENTRY_NIKKI_INDEX))) {
+                throw new IllegalArgumentException(
+                        "Foreign Appnote IFD present");
+            }
+        } catch (Exception e) {
+            createException = e;
+        }
     }
 
     /**
      * @return Image with all fields filled from file data
      */
     public Image createImage() {
+        return createImage(true);
+    }
+
+    /**
+     * @param withThumbnail
+     *            if false, the thumbnail is not read but only marked as
+     *            pending, to be read later via {@link #readThumbnail()}
+     * @return Image with all fields filled from file data
+     */
+    public Image createImage(boolean withThumbnail) {
         Image image = new Image();
         image.setFileName(file.getName());
 
@@ -96,19 +125,24 @@ public class ImageReader extends ImageDataIO {
             if (createException != null) {
                 throw createException;
             }
-            image.setThumbnail(getThumbnail());
+            if (withThumbnail) {
+                image.setThumbnail(getThumbnail());
+            } else {
+                image.setThumbnailPending(true);
+            }
             image.setWaypoint(getWaypoint());
             image.setTitle(getTitle());
             image.setDescription(getDescription());
             image.setExport(isExport());
             image.setTime(getTime());
-            image.setModified(thumbnailNew.booleanValue());
-            llj.freeMemory();
+            image.setModified(Boolean.TRUE.equals(thumbnailNew));
         } catch (Throwable e) {
             Logger.getLogger(getClass()).error(
                     "Error reading image " + file.getName(), e);
             image.setDescription(Texts.ERROR_PREFIX + e.getMessage());
             image.setThumbnail(errorIcon);
+            image.setThumbnailPending(false);
+            readError = true;
         }
 
         return image;
@@ -118,9 +152,9 @@ public class ImageReader extends ImageDataIO {
         if (rotation != null) {
             return rotation;
         }
-        if (exifData != null) {
+        if (header != null) {
             // see http://sylvana.net/jpegcrop/exif_orientation.html
-            switch (exifData.getOrientation()) {
+            switch (header.getOrientation()) {
             case 8:
                 return Rotation.LEFT;
             case 3:
@@ -137,8 +171,8 @@ public class ImageReader extends ImageDataIO {
      *         auto-rotated if rotation is known
      */
     public byte[] getThumbnail() throws Exception {
-        if (exifData != null) {
-            byte[] thumb = exifData.getThumbnailBytes();
+        if (header != null) {
+            byte[] thumb = header.getThumbnail();
             if (thumb != null && thumb.length > 0) {
                 thumbnailNew = Boolean.FALSE;
                 return adjustForRotation(thumb);
@@ -148,6 +182,24 @@ public class ImageReader extends ImageDataIO {
         return scale(THUMBNAIL_SIZE, false, true);
     }
 
+    /**
+     * Like {@link #getThumbnail()}, but returns an error icon instead of
+     * failing when the image cannot be read
+     */
+    public byte[] readThumbnail() {
+        try {
+            if (createException != null) {
+                throw createException;
+            }
+            return getThumbnail();
+        } catch (Throwable e) {
+            Logger.getLogger(getClass()).error(
+                    "Error reading thumbnail " + file.getName(), e);
+            readError = true;
+            return errorIcon;
+        }
+    }
+
     private byte[] adjustForRotation(byte[] result) throws LLJTranException,
             IOException {
         if (getRotation() != null && getRotation() != Rotation.NONE) {
@@ -163,8 +215,8 @@ public class ImageReader extends ImageDataIO {
 
     public DateTime getTime() throws ParseException {
         DateTime time = null;
-        if (exifData != null) {
-            String date = exifData.getDataTimeOriginalString();
+        if (header != null) {
+            String date = header.getDateTimeOriginal();
             if (date != null) {
                 DateTimeZone zone = getTimeZone();
                 if (zone == null) {
@@ -178,20 +230,14 @@ public class ImageReader extends ImageDataIO {
     }
 
     private String getUTF8(int tagName) {
-        if (nikkiIFD == null) {
+        if (header == null) {
             return null;
         }
-        Entry entry = nikkiIFD.getEntry(tagName, 0);
-        if (entry == null) {
+        byte[] bytes = header.getAppNoteBytes(tagName);
+        if (bytes == null) {
             return null;
         }
 
-        Object[] values = entry.getValues();
-        byte[] bytes = new byte[values.length];
-        for (int i = 0; i < values.length; i++) {
-            bytes[i] = (byte) ((Integer) values[i]).intValue();
-        }
-
         try {
             return new String(bytes, "UTF-8");
         } catch (UnsupportedEncodingException ex) {
@@ -208,12 +254,10 @@ public class ImageReader extends ImageDataIO {
     }
 
     public boolean isExport() {
-        if (nikkiIFD == null) {
+        if (header == null) {
             return false;
         }
-        Integer export = (Integer) nikkiIFD.getEntry(ENTRY_EXPORT_INDEX, 0)
-                .getValue(0);
-        return export != null && export != 0;
+        return header.getAppNoteInt(ENTRY_EXPORT_INDEX, 0) != 0;
     }
 
     /**
@@ -226,32 +270,29 @@ public class ImageReader extends ImageDataIO {
     }
 
     public Waypoint getWaypoint() throws ParseException {
-        if (gpsIFD == null) {
+        if (header == null || !header.hasGps()) {
             return null;
         }
 
         Waypoint result = new Waypoint();
         result.setTimestamp(getTime());
+        result.setLatitude(readGpsCoordinate(ExifHeader.GPS_LATITUDE_REF,
+                ExifHeader.GPS_LATITUDE));
+        result.setLongitude(readGpsCoordinate(ExifHeader.GPS_LONGITUDE_REF,
+                ExifHeader.GPS_LONGITUDE));
+        return result;
+    }
 
-        Entry latRef = gpsIFD.getEntry(Exif.GPSLatitudeRef, 0);
-        Entry lat = gpsIFD.getEntry(Exif.GPSLatitude, 0);
-        Entry lonRef = gpsIFD.getEntry(Exif.GPSLongitudeRef, 0);
-        Entry lon = gpsIFD.getEntry(Exif.GPSLongitude, 0);
-
-        if (latRef != null && lat != null) {
-            GeoCoordinate c = new GeoCoordinate();
-            c.setDirection(Cardinal.parse((String) latRef.getValue(0)));
-            c.setMagnitude(readGpsMagnitude(lat));
-            result.setLatitude(c);
-        }
-        if (lonRef != null && lon != null) {
-            GeoCoordinate c = new GeoCoordinate();
-            c.setDirection(Cardinal.parse((String) lonRef.getValue(0)));
-            c.setMagnitude(readGpsMagnitude(lon));
-            result.setLongitude(c);
+    private GeoCoordinate readGpsCoordinate(int refTag, int magnitudeTag) {
+        String ref = header.getGpsRef(refTag);
+        float magnitude = header.getGpsMagnitude(magnitudeTag);
+        if (ref == null || Float.isNaN(magnitude)) {
+            return null;
         }
-
-        return result;
+        GeoCoordinate c = new GeoCoordinate();
+        c.setDirection(Cardinal.parse(ref));
+        c.setMagnitude(magnitude);
+        return c;
     }
 
     /**
@@ -270,27 +311,77 @@ public class ImageReader extends ImageDataIO {
         return result;
     }
 
+    /**
+     * @return true if {@link #createImage()} failed and returned an image
+     *         with an error icon
+     */
+    public boolean isReadError() {
+        return readError;
+    }
+
     /**
      * @return time zone read from EXIF if present, default passed into
      *         constructor otherwise
      */
     public DateTimeZone getTimeZone() {
-        if (nikkiIFD == null) {
-            return this.scanZone;
-        }
+        DateTimeZone zone = getExifTimeZone();
+        return zone == null ? this.scanZone : zone;
+    }
 
-        Entry entry = nikkiIFD.getEntry(ENTRY_TIMEZONE_INDEX, 0);
-        if (entry != null && entry.getValue(0) != null) {
-            String zoneID = (String) entry.getValue(0);
-            return DateTimeZone.forID(zoneID);
-        } else {
-            return this.scanZone;
+    /**
+     * @return time zone read from EXIF, null if not present
+     */
+    public DateTimeZone getExifTimeZone() {
+        if (header == null) {
+            return null;
         }
+
+        String zoneID = header.getAppNoteString(ENTRY_TIMEZONE_INDEX);
+        return zoneID == null ? null : DateTimeZone.forID(zoneID);
     }
 
     public void readMainImage() throws IOException {
-        if (mainImage == null) {
-            mainImage = ImageIO.read(file);
+        readMainImage(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the image data, subsampling already during decoding so that the
+     * result is only as large as necessary. This saves most of the time and
+     * memory needed to decode a large image when only a small version of it
+     * is wanted.
+     * 
+     * @param minWidth
+     *            the decoded image will be at least this wide, unless the
+     *            full image is smaller
+     */
+    private void readMainImage(int minWidth) throws IOException {
+        if (mainImage != null
+                && (mainImageFull || mainImage.getWidth() >= minWidth)) {
+            return;
+        }
+        if (!file.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        try {
+            Iterator<javax.imageio.ImageReader> readers = ImageIO
+                    .getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IIOException("No image reader for " + file.getName());
+            }
+            javax.imageio.ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int factor = Math.max(1, reader.getWidth(0) / minWidth);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                mainImage = reader.read(0, param);
+                mainImageFull = factor == 1;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
         }
     }
 
@@ -306,7 +397,9 @@ public class ImageReader extends ImageDataIO {
      */
     public byte[] scale(int toWidth, boolean paintBorder, boolean isThumbnail)
             throws IOException, LLJTranException {
-        readMainImage();
+        // decode at twice the target size to leave something for the
+        // final, higher-quality scaling step
+        readMainImage(toWidth * 2);
 
         int toHeight = heightForWidth(mainImage, toWidth);
 
@@ -18,14 +18,8 @@ package de.brazzy.nikki.model;
  *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
 import mediautil.gen.Rational;
@@ -34,10 +28,12 @@ import mediautil.image.jpeg.Entry;
 import mediautil.image.jpeg.Exif;
 import mediautil.image.jpeg.IFD;
 import mediautil.image.jpeg.LLJTran;
-import mediautil.image.jpeg.LLJTranException;
 
 import org.apache.commons.io.IOUtils;
 
+import de.brazzy.nikki.util.ExifHeader;
+import de.brazzy.nikki.util.ExifPatch;
+import de.brazzy.nikki.util.HeaderRewriter;
 import de.brazzy.nikki.util.ImageDataIO;
 
 /**
@@ -57,6 +53,9 @@ public class ImageWriter extends ImageDataIO {
         }
     }
 
+    /** Size of the space reserved for in-place changes, in bytes */
+    public static final int PADDING_SIZE = 512;
+
     private Image image;
 
     /**
@@ -65,12 +64,122 @@ public class ImageWriter extends ImageDataIO {
      * @param directory
      *            contains the actual image file
      */
-    public ImageWriter(Image img, File directory) throws LLJTranException {
-        super(new File(directory.getPath(), img.getFileName()),
-                LLJTran.READ_ALL);
-
+    public ImageWriter(Image img, File directory) {
+        super(new File(directory.getPath(), img.getFileName()));
         this.image = img;
+    }
 
+    /**
+     * causes all image data to be written to the file's EXIF headers.
+     * Changes only the affected bytes of the file if the headers were
+     * written by Nikki before and the new values fit, otherwise rewrites
+     * the file, reading only its headers.
+     * 
+     * @return false if nothing was written because the file already
+     *         contained the same data
+     */
+    public boolean saveImage() throws Exception {
+        ExifPatch patch = patchInPlace();
+        if (patch != null) {
+            if (!patch.isChanged()) {
+                return false;
+            }
+            patch.write(file);
+            return true;
+        }
+        readHeaders(LLJTran.READ_INFO);
+        if (createException != null) {
+            throw createException;
+        }
+        prepareHeaders();
+        writeTitle();
+        writeDescription();
+        writeTime();
+        writeExport();
+        writeGPS();
+        writeThumbnail();
+        writePadding();
+
+        llj.refreshAppx();
+        llj.closeInternalInputStream();
+        try {
+            HeaderRewriter.rewrite(file, llj);
+        } finally {
+            llj.freeMemory();
+        }
+        return true;
+    }
+
+    /**
+     * Prepares changes to the existing EXIF entries that do not require
+     * rewriting the file
+     * 
+     * @return null if the file has to be rewritten instead
+     */
+    private ExifPatch patchInPlace() {
+        ExifHeader header;
+        try {
+            header = ExifHeader.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if (header == null
+                || !header.hasAppNote()
+                || !ENTRY_NIKKI_CONTENT.equals(header
+                        .getAppNoteString(ENTRY_NIKKI_INDEX))
+                || (header.getThumbnail() == null && image.getThumbnail() != null)) {
+            return null;
+        }
+
+        ExifPatch patch = new ExifPatch(header, ENTRY_PADDING_INDEX);
+        if (image.getTitle() != null) {
+            patch.setBytes(ExifHeader.IFD_APPNOTE, ENTRY_TITLE_INDEX,
+                    utf8(image.getTitle()));
+        }
+        if (image.getDescription() != null) {
+            patch.setBytes(ExifHeader.IFD_APPNOTE, ENTRY_DESCRIPTION_INDEX,
+                    utf8(image.getDescription()));
+        }
+        if (image.getTime() != null) {
+            patch.setAscii(ExifHeader.IFD_MAIN, Exif.DATETIME, TIME_FORMAT
+                    .print(image.getTime()));
+            patch.setAscii(ExifHeader.IFD_APPNOTE, ENTRY_TIMEZONE_INDEX,
+                    image.getTime().getZone().getID());
+        }
+        patch.setByte(ExifHeader.IFD_APPNOTE, ENTRY_EXPORT_INDEX, image
+                .getExport() ? 1 : 0);
+        Waypoint wp = image.getWaypoint();
+        if (wp != null) {
+            patchGps(patch, header, Exif.GPSLatitudeRef, Exif.GPSLatitude, wp
+                    .getLatitude());
+            patchGps(patch, header, Exif.GPSLongitudeRef, Exif.GPSLongitude,
+                    wp.getLongitude());
+        }
+
+        return patch.isComplete() ? patch : null;
+    }
+
+    private static void patchGps(ExifPatch patch, ExifHeader header,
+            int refTag, int tag, GeoCoordinate coordinate) {
+        String ref = String.valueOf(coordinate.getDirection().getCharacter());
+        String oldRef = header.getGpsRef(refTag);
+        // LLJTran pads the reference with a space
+        if (oldRef == null || !ref.equals(oldRef.trim())) {
+            patch.setAscii(ExifHeader.IFD_GPS, refTag, ref);
+        }
+        // coordinates are read with float precision, so recomputing the
+        // rationals of an unchanged value could still change their rounding
+        if (header.getGpsMagnitude(tag) != (float) coordinate.getMagnitude()) {
+            patch.setRationals(ExifHeader.IFD_GPS, tag, gpsRationals(coordinate
+                    .getMagnitude()));
+        }
+    }
+
+    /**
+     * Creates the EXIF structures needed for writing that are not present in
+     * the file yet.
+     */
+    private void prepareHeaders() {
         if (exifData == null) {
             llj.addAppx(EMPTY_EXIF, 0, EMPTY_EXIF.length, true);
             exifData = (Exif) llj.getImageInfo();
@@ -89,55 +198,27 @@ public class ImageWriter extends ImageDataIO {
                     ENTRY_NIKKI_CONTENT));
             exifIFD.addIFD(nikkiIFD);
         }
-        if (img.getWaypoint() != null && gpsIFD == null) {
+        if (image.getWaypoint() != null && gpsIFD == null) {
             gpsIFD = new IFD(Exif.GPSINFO, Exif.LONG);
             mainIFD.addIFD(gpsIFD);
         }
     }
 
-    /**
-     * causes all image data to be written to the file's EXIF headers.
-     */
-    public void saveImage() throws Exception {
-        if (createException != null) {
-            throw createException;
-        }
-        writeTitle();
-        writeDescription();
-        writeTime();
-        writeExport();
-        writeGPS();
-        writeThumbnail();
-
-        File tmpFile = File.createTempFile("nikki", "tmp", new File(file
-                .getParent()));
-        InputStream fip = new BufferedInputStream(new FileInputStream(file));
-        OutputStream out = new BufferedOutputStream(new FileOutputStream(
-                tmpFile));
-        llj.refreshAppx();
-        llj.xferInfo(fip, out, LLJTran.REPLACE, LLJTran.RETAIN);
-        llj.freeMemory();
-        fip.close();
-        out.close();
-        if (!file.delete()) {
-            throw new IllegalStateException();
-        }
-        if (!tmpFile.renameTo(file)) {
-            throw new IllegalStateException();
+    private static byte[] utf8(String content) {
+        try {
+            return content.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("Can't happen", ex);
         }
     }
 
     private static Entry utf8Entry(String content) {
-        try {
-            Entry entry = new Entry(Exif.UNDEFINED);
-            byte[] data = content.getBytes("UTF-8");
-            for (int i = data.length - 1; i >= 0; i--) {
-                entry.setValue(i, Integer.valueOf(data[i]));
-            }
-            return entry;
-        } catch (UnsupportedEncodingException ex) {
-            throw new IllegalStateException("Can't happen", ex);
+        Entry entry = new Entry(Exif.UNDEFINED);
+        byte[] data = utf8(content);
+        for (int i = data.length - 1; i >= 0; i--) {
+            entry.setValue(i, Integer.valueOf(data[i]));
         }
+        return entry;
     }
 
     private void writeTitle() {
@@ -210,6 +291,17 @@ public class ImageWriter extends ImageDataIO {
         return entry;
     }
 
+    private static int[] gpsRationals(double value) {
+        Object[] values = writeGpsMagnitude(value).getValues();
+        int[] result = new int[values.length * 2];
+        for (int i = 0; i < values.length; i++) {
+            Rational r = (Rational) values[i];
+            result[2 * i] = r.getNum();
+            result[2 * i + 1] = r.getDen();
+        }
+        return result;
+    }
+
     private void writeThumbnail() throws IOException {
         if (exifData.getThumbnailBytes() == null
                 && image.getThumbnail() != null
@@ -218,4 +310,16 @@ public class ImageWriter extends ImageDataIO {
             throw new IllegalStateException();
         }
     }
+
+    /**
+     * Reserves space in the app-specific IFD so that later changes can be
+     * written in place even when values become longer.
+     */
+    private void writePadding() {
+        Entry entry = new Entry(Exif.UNDEFINED);
+        for (int i = PADDING_SIZE - 1; i >= 0; i--) {
+            entry.setValue(i, Integer.valueOf(0));
+        }
+        nikkiIFD.addEntry(ENTRY_PADDING_INDEX, entry);
+    }
 }
@@ -73,16 +73,108 @@ extends AbstractListModel implements Iterable<T> {
         }
     }
     
+    /**
+     * Adds several new elements at once, sorting only once. Fires an
+     * interval added event for each run of new elements that end up
+     * next to each other, in ascending order, so that listeners such as
+     * a list's selection can keep track of the existing elements.
+     */
+    public void addAll(Collection<T> items) {
+        if(!items) {
+            return
+        }
+        List<T> sorted = new ArrayList<T>(items)
+        for(T d in sorted) {
+            if(!d) {
+                throw new IllegalArgumentException("must not be null!")
+            }
+        }
+        Collections.sort(sorted, this.comparator)
+        for(int i=0; i<sorted.size(); i++) {
+            if((i > 0 && this.comparator.compare(sorted[i-1], sorted[i]) == 0) ||
+                    Collections.binarySearch(dataList, sorted[i], this.comparator) >= 0) {
+                throw new IllegalArgumentException("Already present!")
+            }
+        }
+        
+        // merge, recording where each run of new elements starts
+        List<Integer> runStarts = []
+        List<List<T>> runs = []
+        int old = 0
+        for(int i=0; i<sorted.size(); i++) {
+            while(old < dataList.size() &&
+                    this.comparator.compare(dataList[old], sorted[i]) < 0) {
+                old++
+            }
+            int index = old + i
+            if(runs && runStarts[-1] + runs[-1].size() == index) {
+                runs[-1].add(sorted[i])
+            }
+            else {
+                runStarts.add(index)
+                runs.add([sorted[i]])
+            }
+        }
+        // earlier runs are inserted first, so later indices stay valid
+        for(int r=0; r<runs.size(); r++) {
+            int start = runStarts[r]
+            dataList.addAll(start, runs[r])
+            fireIntervalAdded(this, start, start + runs[r].size() - 1)
+        }
+    }
+    
+    /**
+     * Removes several elements at once. Fires an interval removed event for
+     * each run of adjacent removed elements, in descending order, so that
+     * the indices of each event are valid when it is fired.
+     * 
+     * @return number of elements removed
+     */
+    public int removeAll(Collection<T> items) {
+        Set<T> toRemove = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>())
+        toRemove.addAll(items)
+        int removed = 0
+        int last = -1
+        for(int i=dataList.size()-1; i>=-1; i--) {
+            if(i >= 0 && toRemove.contains(dataList[i])) {
+                if(last < 0) {
+                    last = i
+                }
+            }
+            else if(last >= 0) {
+                dataList.subList(i+1, last+1).clear()
+                fireIntervalRemoved(this, i+1, last)
+                removed += last - i
+                last = -1
+            }
+        }
+        return removed
+    }
+    
     public boolean remove(T d) {
-        def index = dataList.indexOf(d)
+        int index = indexOf(d)
         if(index >= 0) {
-            dataList.remove(d)
+            dataList.remove(index)
             fireIntervalRemoved(this, index, index)
             return true
         }
         return false
     }
     
+    /**
+     * Finds an element by binary search, falling back to a linear search
+     * in case its sort order has changed since it was added
+     * 
+     * @return position of the element, -1 if not present
+     */
+    public int indexOf(T d) {
+        int index = Collections.binarySearch(dataList, d, this.comparator)
+        if(index >= 0 && dataList[index] == d) {
+            return index
+        }
+        return dataList.indexOf(d)
+    }
+    
     public boolean contains(T d) {
         dataList.contains(d)
     }
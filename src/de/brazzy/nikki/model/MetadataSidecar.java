@@ -0,0 +1,361 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Keeps the image data that Nikki writes to EXIF headers in a file inside
+ * the image directory, so that saving changes requires only appending a
+ * record per changed image rather than rewriting the image files. The most
+ * recent record for an image takes precedence over its EXIF data when the
+ * directory is scanned, until the data is embedded into the image files.
+ *
+ * @author Michael Borgwardt
+ */
+public class MetadataSidecar {
+    /** Name of the sidecar file inside the image directory */
+    public static final String FILE_NAME = "nikki_metadata.sidecar";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private File file;
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    /** length of the part of the file that contains complete records */
+    private long validLength;
+
+    /**
+     * Data of one image, as written by {@link ImageWriter}
+     */
+    private static class Entry {
+        String title;
+        String description;
+        boolean export;
+        String zone;
+        long time;
+        boolean hasTime;
+        Cardinal latDirection;
+        double latMagnitude;
+        Cardinal lonDirection;
+        double lonMagnitude;
+    }
+
+    /**
+     * @return file in which the sidecar for the given directory is kept
+     */
+    public static File fileFor(File directory) {
+        return new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Loads the sidecar of the given directory, if it exists and is readable
+     */
+    public MetadataSidecar(File directory) {
+        this.file = fileFor(directory);
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                Logger.getLogger(getClass()).warn(
+                        "Error reading metadata sidecar " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @return true if there is no data to be embedded into image files
+     */
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return names of the image files with data in the sidecar
+     */
+    public synchronized List<String> getFileNames() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * Replaces the image's data with that from the sidecar, if there is any.
+     * Does not change the modified flag.
+     */
+    public synchronized void overlay(Image image) {
+        Entry e = entries.get(image.getFileName());
+        if (e == null) {
+            return;
+        }
+        boolean modified = image.getModified();
+        DateTime time = image.getTime();
+        if (e.hasTime) {
+            time = new DateTime(e.time, DateTimeZone.forID(e.zone));
+            image.setTime(time);
+        }
+        if (e.title != null) {
+            image.setTitle(e.title);
+        }
+        if (e.description != null) {
+            image.setDescription(e.description);
+        }
+        image.setExport(e.export);
+        if (e.latDirection != null && e.lonDirection != null) {
+            Waypoint wp = new Waypoint();
+            wp.setTimestamp(time);
+            wp.setLatitude(coordinate(e.latDirection, e.latMagnitude));
+            wp.setLongitude(coordinate(e.lonDirection, e.lonMagnitude));
+            image.setWaypoint(wp);
+        }
+        image.setModified(modified);
+    }
+
+    private static GeoCoordinate coordinate(Cardinal direction,
+            double magnitude) {
+        GeoCoordinate c = new GeoCoordinate();
+        c.setDirection(direction);
+        c.setMagnitude(magnitude);
+        return c;
+    }
+
+    /**
+     * Appends the current data of the given images to the file
+     */
+    public synchronized void append(Collection<Image> images)
+            throws IOException {
+        if (images.isEmpty()) {
+            return;
+        }
+        if (file.length() > validLength) {
+            // cut off an incomplete record left by an earlier failure
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true)));
+        try {
+            if (validLength == 0) {
+                out.writeInt(FORMAT_VERSION);
+            }
+            for (Image image : images) {
+                Entry e = entry(image);
+                writeEntry(out, image.getFileName(), e);
+                entries.put(image.getFileName(), e);
+            }
+        } finally {
+            out.close();
+        }
+        validLength = file.length();
+    }
+
+    /**
+     * Removes the data of all images not in the given collection, usually
+     * after the data of the others has been embedded into the image files.
+     * Deletes the file when no data remains.
+     */
+    public synchronized void retain(Collection<String> fileNames)
+            throws IOException {
+        if (!entries.keySet().retainAll(fileNames)) {
+            return;
+        }
+        if (entries.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            validLength = 0;
+            return;
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                writeEntry(out, me.getKey(), me.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tmpFile);
+        }
+        validLength = file.length();
+    }
+
+    private static Entry entry(Image image) {
+        Entry e = new Entry();
+        e.title = image.getTitle();
+        e.description = image.getDescription();
+        e.export = image.getExport();
+        if (image.getTime() != null) {
+            e.hasTime = true;
+            e.time = image.getTime().getMillis();
+            e.zone = image.getTime().getZone().getID();
+        }
+        Waypoint wp = image.getWaypoint();
+        if (wp != null && wp.getLatitude() != null
+                && wp.getLongitude() != null) {
+            e.latDirection = wp.getLatitude().getDirection();
+            e.latMagnitude = wp.getLatitude().getMagnitude();
+            e.lonDirection = wp.getLongitude().getDirection();
+            e.lonMagnitude = wp.getLongitude().getMagnitude();
+        }
+        return e;
+    }
+
+    private static void writeEntry(DataOutputStream out, String fileName,
+            Entry e) throws IOException {
+        writeString(out, fileName);
+        writeString(out, e.title);
+        writeString(out, e.description);
+        out.writeBoolean(e.export);
+        out.writeBoolean(e.hasTime);
+        out.writeLong(e.time);
+        writeString(out, e.zone);
+        writeString(out, e.latDirection == null ? null : e.latDirection
+                .name());
+        out.writeDouble(e.latMagnitude);
+        writeString(out, e.lonDirection == null ? null : e.lonDirection
+                .name());
+        out.writeDouble(e.lonMagnitude);
+    }
+
+    private void load() throws IOException {
+        CountingInputStream counter = new CountingInputStream(
+                new FileInputStream(file));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            validLength = counter.count;
+            while (true) {
+                Entry e = new Entry();
+                String fileName;
+                try {
+                    fileName = readString(in);
+                    e.title = readString(in);
+                    e.description = readString(in);
+                    e.export = in.readBoolean();
+                    e.hasTime = in.readBoolean();
+                    e.time = in.readLong();
+                    e.zone = readString(in);
+                    String dir = readString(in);
+                    e.latDirection = dir == null ? null : Cardinal.valueOf(dir);
+                    e.latMagnitude = in.readDouble();
+                    dir = readString(in);
+                    e.lonDirection = dir == null ? null : Cardinal.valueOf(dir);
+                    e.lonMagnitude = in.readDouble();
+                } catch (EOFException ex) {
+                    // end of file or incomplete last record
+                    return;
+                }
+                entries.remove(fileName);
+                entries.put(fileName, e);
+                validLength = counter.count;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keeps track of the number of bytes read, to find the end of the last
+     * complete record
+     */
+    private static class CountingInputStream extends BufferedInputStream {
+        long count;
+
+        CountingInputStream(FileInputStream in) {
+            super(in);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len)
+                throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes("UTF-8"));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, "UTF-8");
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
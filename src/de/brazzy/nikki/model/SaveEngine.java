@@ -0,0 +1,471 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import de.brazzy.nikki.util.NikkiWorker;
+
+/**
+ * Saves the modified images of several directories on a bounded thread
+ * pool. The number of images written at the same time is limited per disk,
+ * across all saves by the same engine. The mount point of a directory is used
+ * as the best available approximation of the physical disk; where the mount
+ * points are not known (no /proc/mounts), the file system root is used
+ * instead, which on Unix-like systems makes the limit a global one.
+ * <p>
+ * In sidecar mode, the data is instead appended to a
+ * {@link MetadataSidecar} per directory, and written to the image files
+ * only by {@link #embed(List, NikkiWorker)}.
+ *
+ * @author Michael Borgwardt
+ */
+public class SaveEngine {
+    /** Default size of the thread pool */
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime
+            .getRuntime().availableProcessors());
+
+    /** Default maximum number of images written to one disk at the same time */
+    public static final int DEFAULT_IO_PER_DISK = 2;
+
+    private final int threads;
+    private final int ioPerDisk;
+    private final boolean sidecar;
+    private final AtomicInteger skippedWrites = new AtomicInteger();
+
+    /** Limits the concurrent writes to each disk, keyed by mount point */
+    private final Map<String, Semaphore> disks = new HashMap<String, Semaphore>();
+
+    public SaveEngine() {
+        this(DEFAULT_THREADS, DEFAULT_IO_PER_DISK, false);
+    }
+
+    public SaveEngine(int threads, int ioPerDisk) {
+        this(threads, ioPerDisk, false);
+    }
+
+    /**
+     * @param threads
+     *            size of the thread pool
+     * @param ioPerDisk
+     *            maximum number of images written to one disk at the same
+     *            time
+     * @param sidecar
+     *            whether to save to a {@link MetadataSidecar} rather than
+     *            the image files
+     */
+    public SaveEngine(int threads, int ioPerDisk, boolean sidecar) {
+        if (threads < 1 || ioPerDisk < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.threads = threads;
+        this.ioPerDisk = ioPerDisk;
+        this.sidecar = sidecar;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getIoPerDisk() {
+        return ioPerDisk;
+    }
+
+    public boolean getSidecar() {
+        return sidecar;
+    }
+
+    /**
+     * @return number of modified images that were not written because their
+     *         files already contained the same data
+     */
+    public int getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    /**
+     * Saves all modified images in the given directories and waits for the
+     * result.
+     *
+     * @param worker
+     *            receives the progress across all directories, may be null
+     * @return for each directory, exceptions that occurred while saving,
+     *         keyed by file name
+     */
+    public Map<Directory, Map<String, Exception>> save(List<Directory> dirs,
+            NikkiWorker worker) throws InterruptedException {
+        beginSave(dirs);
+        try {
+            if (sidecar) {
+                return saveToSidecars(dirs, worker);
+            }
+            List<List<Image>> images = new ArrayList<List<Image>>();
+            for (Directory dir : dirs) {
+                images.add(dir.getModifiedImages());
+            }
+            return write(dirs, images, false, worker);
+        } finally {
+            endSave(dirs);
+        }
+    }
+
+    /**
+     * Saves all modified images in one directory
+     *
+     * @see #save(List, NikkiWorker)
+     */
+    public Map<String, Exception> save(Directory dir, NikkiWorker worker)
+            throws InterruptedException {
+        return save(Collections.singletonList(dir), worker).get(dir);
+    }
+
+    /**
+     * Writes the data kept in the {@link MetadataSidecar} of the given
+     * directories into the image files, and removes it from the sidecars.
+     * Unsaved modifications are added to the sidecars first. Data for files
+     * that could not be written, or that are not part of the directory, is
+     * kept in the sidecars.
+     *
+     * @see #save(List, NikkiWorker)
+     */
+    public Map<Directory, Map<String, Exception>> embed(List<Directory> dirs,
+            NikkiWorker worker) throws InterruptedException {
+        beginSave(dirs);
+        try {
+            return embedSaving(dirs, worker);
+        } finally {
+            endSave(dirs);
+        }
+    }
+
+    private Map<Directory, Map<String, Exception>> embedSaving(
+            List<Directory> dirs, NikkiWorker worker)
+            throws InterruptedException {
+        Map<Directory, Map<String, Exception>> exceptions = saveToSidecars(
+                dirs, null);
+        List<MetadataSidecar> sidecars = new ArrayList<MetadataSidecar>();
+        List<List<Image>> images = new ArrayList<List<Image>>();
+        for (Directory dir : dirs) {
+            MetadataSidecar sc = new MetadataSidecar(dir.getPath());
+            List<Image> list = new ArrayList<Image>();
+            for (String fileName : sc.getFileNames()) {
+                Image image = dir.getImages().get(fileName);
+                if (image != null && !exceptions.get(dir).containsKey(fileName)) {
+                    list.add(image);
+                }
+            }
+            sidecars.add(sc);
+            images.add(list);
+        }
+
+        Map<Directory, Map<String, Exception>> written = write(dirs, images,
+                true, worker);
+        for (int i = 0; i < dirs.size(); i++) {
+            Directory dir = dirs.get(i);
+            Map<String, Exception> dirExceptions = exceptions.get(dir);
+            dirExceptions.putAll(written.get(dir));
+            Set<String> remaining = new HashSet<String>(sidecars.get(i)
+                    .getFileNames());
+            for (Image image : images.get(i)) {
+                if (!dirExceptions.containsKey(image.getFileName())) {
+                    remaining.remove(image.getFileName());
+                }
+            }
+            try {
+                sidecars.get(i).retain(remaining);
+            } catch (IOException ex) {
+                Logger.getLogger(getClass()).error(
+                        "Error updating metadata sidecar in " + dir, ex);
+                dirExceptions.put(MetadataSidecar.FILE_NAME, ex);
+            }
+        }
+        return exceptions;
+    }
+
+    private static void beginSave(List<Directory> dirs) {
+        for (Directory dir : dirs) {
+            dir.beginSave();
+        }
+    }
+
+    private static void endSave(List<Directory> dirs) {
+        for (Directory dir : dirs) {
+            dir.endSave();
+        }
+    }
+
+    private Map<Directory, Map<String, Exception>> saveToSidecars(
+            List<Directory> dirs, NikkiWorker worker) {
+        Map<Directory, Map<String, Exception>> exceptions = new LinkedHashMap<Directory, Map<String, Exception>>();
+        if (worker != null) {
+            worker.setProgressUpdate(0);
+        }
+        int done = 0;
+        for (Directory dir : dirs) {
+            Map<String, Exception> dirExceptions = new LinkedHashMap<String, Exception>();
+            exceptions.put(dir, dirExceptions);
+            List<Image> images = dir.getModifiedImages();
+            if (worker != null) {
+                worker.setLabelUpdate(dir.toString());
+            }
+            try {
+                new MetadataSidecar(dir.getPath()).append(images);
+                for (Image image : images) {
+                    image.setModified(false);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(getClass()).error(
+                        "Error writing metadata sidecar in " + dir, ex);
+                for (Image image : images) {
+                    dirExceptions.put(image.getFileName(), ex);
+                }
+            }
+            if (worker != null) {
+                worker.setProgressUpdate(++done * 100 / dirs.size());
+            }
+        }
+        if (worker != null) {
+            worker.setProgressUpdate(0);
+        }
+        return exceptions;
+    }
+
+    /**
+     * Writes the given images of each directory to their files on the
+     * thread pool
+     *
+     * @param embed
+     *            whether to write the images regardless of their modified
+     *            flag
+     */
+    private Map<Directory, Map<String, Exception>> write(List<Directory> dirs,
+            List<List<Image>> dirImages, final boolean embed,
+            final NikkiWorker worker) throws InterruptedException {
+        List<Image> images = new ArrayList<Image>();
+        List<Directory> imageDirs = new ArrayList<Directory>();
+        List<Semaphore> imageDisks = new ArrayList<Semaphore>();
+        List<String> mountPoints = readMountPoints();
+        for (int i = 0; i < dirs.size(); i++) {
+            Directory dir = dirs.get(i);
+            Semaphore disk = diskSemaphore(diskOf(dir.getPath(), mountPoints));
+            for (Image image : dirImages.get(i)) {
+                images.add(image);
+                imageDirs.add(dir);
+                imageDisks.add(disk);
+            }
+        }
+
+        if (worker != null) {
+            worker.setProgressUpdate(0);
+        }
+        final int total = images.size();
+        final AtomicInteger done = new AtomicInteger();
+        List<Future<Exception>> results = new ArrayList<Future<Exception>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                threads, Math.max(1, total)), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SaveEngine");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            for (int i = 0; i < total; i++) {
+                final Image image = images.get(i);
+                final File path = imageDirs.get(i).getPath();
+                final Semaphore disk = imageDisks.get(i);
+                results.add(executor.submit(new Callable<Exception>() {
+                    @Override
+                    public Exception call() throws InterruptedException {
+                        disk.acquire();
+                        try {
+                            if (worker != null) {
+                                worker.setLabelUpdate(image.getFileName());
+                            }
+                            boolean written = embed ? new ImageWriter(image,
+                                    path).saveImage() : image.save(path);
+                            if (!written) {
+                                skippedWrites.incrementAndGet();
+                            }
+                            return null;
+                        } catch (Exception ex) {
+                            Logger.getLogger(SaveEngine.class).error(
+                                    "Error saving data in image "
+                                            + image.getFileName(), ex);
+                            return ex;
+                        } finally {
+                            disk.release();
+                            if (worker != null) {
+                                worker.setProgressUpdate(done
+                                        .incrementAndGet()
+                                        * 100 / total);
+                            }
+                        }
+                    }
+                }));
+            }
+
+            Map<Directory, Map<String, Exception>> exceptions = new LinkedHashMap<Directory, Map<String, Exception>>();
+            for (Directory dir : dirs) {
+                exceptions.put(dir, new LinkedHashMap<String, Exception>());
+            }
+            for (int i = 0; i < total; i++) {
+                Exception ex;
+                try {
+                    ex = results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (ex != null) {
+                    exceptions.get(imageDirs.get(i)).put(
+                            images.get(i).getFileName(), ex);
+                }
+            }
+            return exceptions;
+        } finally {
+            executor.shutdownNow();
+            if (worker != null) {
+                worker.setProgressUpdate(0);
+            }
+        }
+    }
+
+    private synchronized Semaphore diskSemaphore(String disk) {
+        Semaphore result = disks.get(disk);
+        if (result == null) {
+            result = new Semaphore(ioPerDisk, true);
+            disks.put(disk, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the mount point containing the directory, or its file system
+     *         root if there is none
+     */
+    public static String diskOf(File dir) {
+        return diskOf(dir, readMountPoints());
+    }
+
+    /**
+     * @param mountPoints
+     *            absolute paths of the mount points
+     * @return the longest of the mount points containing the directory, or
+     *         its file system root if there is none
+     */
+    public static String diskOf(File dir, Collection<String> mountPoints) {
+        File root;
+        try {
+            root = dir.getCanonicalFile();
+        } catch (IOException e) {
+            root = dir.getAbsoluteFile();
+        }
+        String path = root.getPath();
+        String result = null;
+        for (String mount : mountPoints) {
+            boolean contains = path.equals(mount)
+                    || path.startsWith(mount.endsWith(File.separator) ? mount
+                            : mount + File.separator);
+            if (contains
+                    && (result == null || mount.length() > result.length())) {
+                result = mount;
+            }
+        }
+        if (result != null) {
+            return result;
+        }
+        while (root.getParentFile() != null) {
+            root = root.getParentFile();
+        }
+        return root.getPath();
+    }
+
+    /**
+     * @return the mount points listed in /proc/mounts, none if it cannot be
+     *         read
+     */
+    private static List<String> readMountPoints() {
+        List<String> result = new ArrayList<String>();
+        File mounts = new File("/proc/mounts");
+        if (!mounts.canRead()) {
+            return result;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mounts), "UTF-8"));
+            try {
+                for (String line = in.readLine(); line != null; line = in
+                        .readLine()) {
+                    String[] fields = line.split(" ");
+                    if (fields.length > 1) {
+                        result.add(unescape(fields[1]));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Logger.getLogger(SaveEngine.class).warn(
+                    "Could not read mount points", e);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the octal escapes used in /proc/mounts for spaces etc.
+     */
+    private static String unescape(String field) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length()) {
+                result.append((char) Integer.parseInt(field.substring(i + 1,
+                        i + 4), 8));
+                i += 3;
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
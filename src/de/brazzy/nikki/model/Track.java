@@ -0,0 +1,219 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import de.brazzy.nikki.util.TrackPointBuffer;
+
+/**
+ * The points of one GPS log in primitive arrays, in file order. Coordinates
+ * are kept in fixed point, and time zones in a table with one entry per
+ * distinct zone. {@link Waypoint} objects are created only when a point is
+ * asked for, and then kept so that the same object is returned every time.
+ *
+ * @author Michael Borgwardt
+ */
+public class Track implements Serializable {
+    public static final long serialVersionUID = 1;
+
+    /** Units per degree of the fixed point coordinates, about 1cm */
+    public static final double COORDINATE_SCALE = 1e7;
+
+    private final WaypointFile file;
+    private final long[] times;
+    private final int[] latitudes;
+    private final int[] longitudes;
+    private final short[] zoneIndices;
+    private final DateTimeZone[] zones;
+    private transient Map<Integer, Waypoint> views;
+
+    /**
+     * @param zones
+     *            time zone of each point, null for UTC
+     */
+    public Track(WaypointFile file, TrackPointBuffer points,
+            DateTimeZone[] zones) {
+        int size = points.size();
+        this.file = file;
+        this.times = new long[size];
+        this.latitudes = new int[size];
+        this.longitudes = new int[size];
+        this.zoneIndices = new short[size];
+
+        List<DateTimeZone> zoneTable = new ArrayList<DateTimeZone>();
+        for (int i = 0; i < size; i++) {
+            times[i] = points.getTime(i);
+            latitudes[i] = (int) Math.round(points.getLatitude(i)
+                    * COORDINATE_SCALE);
+            longitudes[i] = (int) Math.round(points.getLongitude(i)
+                    * COORDINATE_SCALE);
+            DateTimeZone zone = zones[i] == null ? DateTimeZone.UTC
+                    : zones[i];
+            int index = zoneTable.indexOf(zone);
+            if (index < 0) {
+                index = zoneTable.size();
+                zoneTable.add(zone);
+            }
+            zoneIndices[i] = (short) index;
+        }
+        this.zones = zoneTable.toArray(new DateTimeZone[zoneTable.size()]);
+    }
+
+    public WaypointFile getFile() {
+        return file;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /**
+     * @return UTC milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public DateTimeZone getZone(int index) {
+        return zones[zoneIndices[index]];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index] / COORDINATE_SCALE;
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index] / COORDINATE_SCALE;
+    }
+
+    /**
+     * @return positions of the points, grouped by their date in their own
+     *         time zone
+     */
+    public Map<LocalDate, int[]> getPointsByDate() {
+        List<LocalDate> dates = new ArrayList<LocalDate>();
+        int[] counts = new int[4];
+        int[] dateIndices = new int[times.length];
+        int current = -1;
+        int zone = -1;
+        long start = 0;
+        long end = 0;
+        for (int i = 0; i < times.length; i++) {
+            // consecutive points mostly share a date, so look it up only
+            // when leaving the current one
+            if (zoneIndices[i] != zone || times[i] < start || times[i] >= end) {
+                zone = zoneIndices[i];
+                LocalDate date = new LocalDate(times[i], zones[zone]);
+                start = date.toDateTimeAtStartOfDay(zones[zone]).getMillis();
+                end = date.plusDays(1).toDateTimeAtStartOfDay(zones[zone])
+                        .getMillis();
+                current = dates.indexOf(date);
+                if (current < 0) {
+                    current = dates.size();
+                    dates.add(date);
+                    if (current == counts.length) {
+                        counts = Arrays.copyOf(counts, current * 2);
+                    }
+                }
+            }
+            dateIndices[i] = current;
+            counts[current]++;
+        }
+
+        int[][] points = new int[dates.size()][];
+        for (int d = 0; d < points.length; d++) {
+            points[d] = new int[counts[d]];
+            counts[d] = 0;
+        }
+        for (int i = 0; i < times.length; i++) {
+            int d = dateIndices[i];
+            points[d][counts[d]++] = i;
+        }
+        Map<LocalDate, int[]> result = new LinkedHashMap<LocalDate, int[]>();
+        for (int d = 0; d < points.length; d++) {
+            result.put(dates.get(d), points[d]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the Waypoint for the point at the given index, created on the
+     *         first call
+     */
+    public synchronized Waypoint getWaypoint(int index) {
+        if (views == null) {
+            views = new HashMap<Integer, Waypoint>();
+        }
+        Waypoint result = views.get(index);
+        if (result == null) {
+            result = new Waypoint();
+            result.setTimestamp(new DateTime(times[index], getZone(index)));
+            result.setLatitude(GeoCoordinate
+                    .fromValue(getLatitude(index), true));
+            result.setLongitude(GeoCoordinate
+                    .fromValue(getLongitude(index), false));
+            result.setFile(file);
+            result.setTrack(this);
+            result.setTrackIndex(index);
+            if (file != null && file.getDirectory() != null) {
+                result.setDay(file.getDirectory().getDay(
+                        result.getTimestamp().toLocalDate()));
+            }
+            views.put(index, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the Waypoints that have been created so far
+     */
+    public synchronized List<Waypoint> getCreatedWaypoints() {
+        return views == null ? new ArrayList<Waypoint>()
+                : new ArrayList<Waypoint>(views.values());
+    }
+
+    /**
+     * @return all points as Waypoints, created as they are accessed
+     */
+    public List<Waypoint> getWaypoints() {
+        return new AbstractList<Waypoint>() {
+            @Override
+            public Waypoint get(int index) {
+                return getWaypoint(index);
+            }
+
+            @Override
+            public int size() {
+                return times.length;
+            }
+        };
+    }
+}
@@ -50,6 +50,12 @@ class Waypoint implements Serializable, Comparable<Waypoint>{
      **/
     boolean startNewLine
 
+    /** Columnar storage of which this waypoint is a view, null if there is none */
+    Track track
+
+    /** Position of this waypoint in its track */
+    int trackIndex
+
     public String toString() {
         return timestamp.toString()
     }
@@ -59,11 +65,20 @@ class Waypoint implements Serializable, Comparable<Waypoint>{
     }
 
     public float distanceInMeters(Waypoint other) {
+        return distanceInMeters(latitude.value, longitude.value,
+                other.latitude.value, other.longitude.value)
+    }
+
+    /**
+     * @return distance between two positions given as signed degrees
+     */
+    public static float distanceInMeters(double latitude1, double longitude1,
+            double latitude2, double longitude2) {
         double earthRadius = 3958.75;
-        double dLat = Math.toRadians(latitude.value-other.latitude.value);
-        double dLng = Math.toRadians(longitude.value-other.longitude.value);
+        double dLat = Math.toRadians(latitude1-latitude2);
+        double dLng = Math.toRadians(longitude1-longitude2);
         double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-                Math.cos(Math.toRadians(other.latitude.value)) * Math.cos(Math.toRadians(latitude.value)) *
+                Math.cos(Math.toRadians(latitude2)) * Math.cos(Math.toRadians(latitude1)) *
                 Math.sin(dLng/2) * Math.sin(dLng/2);
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
         double dist = earthRadius * c;
@@ -25,12 +25,22 @@ package de.brazzy.nikki.model;
 class WaypointFile implements Serializable{
     public static final long serialVersionUID = 1;
     
-    /** All the waypoints in the file*/
+    /** All the waypoints in the file, unless they are kept in a Track */
     List<Waypoint> waypoints = [];
     
+    /** Columnar storage of the waypoints, null if they are kept in the list */
+    Track track;
+    
     /** Contains this file*/
     Directory directory;
     
     String fileName;
     
+    /**
+     * @return all the waypoints in the file
+     */
+    public List<Waypoint> getWaypoints() {
+        return track ? track.waypoints : waypoints
+    }
+    
 }
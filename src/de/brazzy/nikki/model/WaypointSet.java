@@ -0,0 +1,422 @@
+package de.brazzy.nikki.model;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * Set of Waypoints sorted by time, with the same semantics as a
+ * {@link java.util.TreeSet}: of several waypoints with the same timestamp,
+ * only the first one added is kept. Waypoints that belong to a
+ * {@link Track} are stored as a reference into it, so the timestamps and
+ * positions can be read without creating any Waypoint objects.
+ * <p>
+ * Unlike those of a TreeSet, the sets returned by {@link #headSet(Waypoint)}
+ * , {@link #tailSet(Waypoint)} and {@link #subSet(Waypoint, Waypoint)} are
+ * copies rather than views.
+ *
+ * @author Michael Borgwardt
+ */
+public class WaypointSet extends AbstractSet<Waypoint> implements
+        SortedSet<Waypoint>, Serializable {
+    public static final long serialVersionUID = 1;
+
+    private long[] times = new long[16];
+    /** Track or standalone Waypoint of each element */
+    private Object[] sources = new Object[16];
+    /** Position of each element in its Track */
+    private int[] indices = new int[16];
+    private int size;
+
+    public WaypointSet() {
+    }
+
+    public WaypointSet(Collection<? extends Waypoint> waypoints) {
+        addAll(waypoints);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return UTC milliseconds since the epoch of the element at the given
+     *         position
+     */
+    public long getTime(int index) {
+        checkIndex(index);
+        Object source = sources[index];
+        return source instanceof Track ? times[index] : ((Waypoint) source)
+                .getTimestamp().getMillis();
+    }
+
+    public double getLatitude(int index) {
+        checkIndex(index);
+        Object source = sources[index];
+        return source instanceof Track ? ((Track) source)
+                .getLatitude(indices[index]) : ((Waypoint) source)
+                .getLatitude().getValue();
+    }
+
+    public double getLongitude(int index) {
+        checkIndex(index);
+        Object source = sources[index];
+        return source instanceof Track ? ((Track) source)
+                .getLongitude(indices[index]) : ((Waypoint) source)
+                .getLongitude().getValue();
+    }
+
+    /**
+     * @return the element at the given position, which is created if it
+     *         belongs to a Track
+     */
+    public Waypoint get(int index) {
+        checkIndex(index);
+        Object source = sources[index];
+        return source instanceof Track ? ((Track) source)
+                .getWaypoint(indices[index]) : (Waypoint) source;
+    }
+
+    /**
+     * @see Waypoint#distanceInMeters(Waypoint)
+     */
+    public float distanceInMeters(int index1, int index2) {
+        return Waypoint.distanceInMeters(getLatitude(index1),
+                getLongitude(index1), getLatitude(index2),
+                getLongitude(index2));
+    }
+
+    /**
+     * @return position of the first element not before the given time, size()
+     *         if there is none
+     */
+    public int lowerBound(long time) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+    }
+
+    @Override
+    public boolean add(Waypoint wp) {
+        long time = wp.getTimestamp().getMillis();
+        int index = Arrays.binarySearch(times, 0, size, time);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        ensureCapacity(size + 1);
+        System.arraycopy(times, index, times, index + 1, size - index);
+        System.arraycopy(sources, index, sources, index + 1, size - index);
+        System.arraycopy(indices, index, indices, index + 1, size - index);
+        times[index] = time;
+        if (wp.getTrack() != null) {
+            sources[index] = wp.getTrack();
+            indices[index] = wp.getTrackIndex();
+        } else {
+            sources[index] = wp;
+            indices[index] = 0;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds the waypoints in a single merge
+     */
+    @Override
+    public boolean addAll(Collection<? extends Waypoint> c) {
+        Waypoint[] added = c.toArray(new Waypoint[c.size()]);
+        // stable, so the first of several with the same timestamp stays first
+        Arrays.sort(added);
+        long[] addedTimes = new long[added.length];
+        Object[] addedSources = new Object[added.length];
+        int[] addedIndices = new int[added.length];
+        for (int i = 0; i < added.length; i++) {
+            addedTimes[i] = added[i].getTimestamp().getMillis();
+            if (added[i].getTrack() != null) {
+                addedSources[i] = added[i].getTrack();
+                addedIndices[i] = added[i].getTrackIndex();
+            } else {
+                addedSources[i] = added[i];
+            }
+        }
+        return merge(addedTimes, addedSources, addedIndices);
+    }
+
+    /**
+     * Adds all points of a Track
+     *
+     * @see #addTrack(Track, int[])
+     */
+    public boolean addTrack(Track track) {
+        int[] points = new int[track.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = i;
+        }
+        return addTrack(track, points);
+    }
+
+    /**
+     * Adds points of a Track in a single merge, without creating Waypoint
+     * objects for them
+     *
+     * @param points
+     *            positions of the points in the track
+     * @return true if any were added
+     */
+    public boolean addTrack(final Track track, int[] points) {
+        boolean sorted = true;
+        for (int i = 1; i < points.length && sorted; i++) {
+            sorted = track.getTime(points[i - 1]) <= track.getTime(points[i]);
+        }
+        if (!sorted) {
+            Integer[] order = new Integer[points.length];
+            for (int i = 0; i < points.length; i++) {
+                order[i] = points[i];
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long ta = track.getTime(a);
+                    long tb = track.getTime(b);
+                    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+                }
+            });
+            points = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                points[i] = order[i];
+            }
+        }
+
+        long[] addedTimes = new long[points.length];
+        Object[] addedSources = new Object[points.length];
+        for (int i = 0; i < points.length; i++) {
+            addedTimes[i] = track.getTime(points[i]);
+            addedSources[i] = track;
+        }
+        return merge(addedTimes, addedSources, points);
+    }
+
+    /**
+     * Merges sorted elements into this set, keeping existing ones in case of
+     * equal timestamps
+     */
+    private boolean merge(long[] addedTimes, Object[] addedSources,
+            int[] addedIndices) {
+        int total = size + addedTimes.length;
+        long[] newTimes = new long[Math.max(16, total)];
+        Object[] newSources = new Object[newTimes.length];
+        int[] newIndices = new int[newTimes.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size || j < addedTimes.length) {
+            if (j < addedTimes.length && j > 0
+                    && addedTimes[j] == addedTimes[j - 1]) {
+                j++;
+            } else if (j == addedTimes.length
+                    || (i < size && times[i] <= addedTimes[j])) {
+                if (j < addedTimes.length && times[i] == addedTimes[j]) {
+                    j++;
+                }
+                newTimes[k] = times[i];
+                newSources[k] = sources[i];
+                newIndices[k] = indices[i];
+                i++;
+                k++;
+            } else {
+                newTimes[k] = addedTimes[j];
+                newSources[k] = addedSources[j];
+                newIndices[k] = addedIndices[j];
+                j++;
+                k++;
+            }
+        }
+        boolean changed = k > size;
+        times = newTimes;
+        sources = newSources;
+        indices = newIndices;
+        size = k;
+        return changed;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Waypoint)) {
+            return false;
+        }
+        int index = Arrays.binarySearch(times, 0, size, ((Waypoint) o)
+                .getTimestamp().getMillis());
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(times, index + 1, times, index, size - index - 1);
+        System.arraycopy(sources, index + 1, sources, index, size - index - 1);
+        System.arraycopy(indices, index + 1, indices, index, size - index - 1);
+        size--;
+        sources[size] = null;
+    }
+
+    /**
+     * Removes all elements that belong to the given Track in a single pass
+     *
+     * @return true if any were removed
+     */
+    public boolean removeTrack(Track track) {
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            if (sources[i] != track) {
+                times[k] = times[i];
+                sources[k] = sources[i];
+                indices[k] = indices[i];
+                k++;
+            }
+        }
+        Arrays.fill(sources, k, size, null);
+        boolean changed = k < size;
+        size = k;
+        return changed;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Waypoint
+                && Arrays.binarySearch(times, 0, size, ((Waypoint) o)
+                        .getTimestamp().getMillis()) >= 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(sources, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Waypoint> iterator() {
+        return new Iterator<Waypoint>() {
+            private int next;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Waypoint next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                return get(next++);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                removeAt(last);
+                next = last;
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * @return null, as the waypoints' natural ordering is used
+     */
+    @Override
+    public Comparator<? super Waypoint> comparator() {
+        return null;
+    }
+
+    @Override
+    public Waypoint first() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(0);
+    }
+
+    @Override
+    public Waypoint last() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(size - 1);
+    }
+
+    @Override
+    public SortedSet<Waypoint> headSet(Waypoint toElement) {
+        return range(0, lowerBound(toElement.getTimestamp().getMillis()));
+    }
+
+    @Override
+    public SortedSet<Waypoint> tailSet(Waypoint fromElement) {
+        return range(lowerBound(fromElement.getTimestamp().getMillis()), size);
+    }
+
+    @Override
+    public SortedSet<Waypoint> subSet(Waypoint fromElement, Waypoint toElement) {
+        int from = lowerBound(fromElement.getTimestamp().getMillis());
+        int to = lowerBound(toElement.getTimestamp().getMillis());
+        if (from > to) {
+            throw new IllegalArgumentException("fromElement > toElement");
+        }
+        return range(from, to);
+    }
+
+    private WaypointSet range(int from, int to) {
+        WaypointSet result = new WaypointSet();
+        result.ensureCapacity(to - from);
+        System.arraycopy(times, from, result.times, 0, to - from);
+        System.arraycopy(sources, from, result.sources, 0, to - from);
+        System.arraycopy(indices, from, result.indices, 0, to - from);
+        result.size = to - from;
+        return result;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > times.length) {
+            int newCapacity = Math.max(capacity, times.length * 2);
+            times = Arrays.copyOf(times, newCapacity);
+            sources = Arrays.copyOf(sources, newCapacity);
+            indices = Arrays.copyOf(indices, newCapacity);
+        }
+    }
+}
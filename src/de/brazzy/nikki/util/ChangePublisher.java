@@ -0,0 +1,146 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Applies changes to the models displayed in the GUI on the event dispatch
+ * thread. Changes published from background threads are queued and applied
+ * in order, in batches no more than {@link #MAX_RATE} times per second.
+ *
+ * @author Michael Borgwardt
+ */
+public class ChangePublisher {
+    /** Maximum number of batches applied per second */
+    public static final int MAX_RATE = 10;
+
+    /** Minimum time between two batches, in milliseconds */
+    public static final int INTERVAL = 1000 / MAX_RATE;
+
+    private final List<Runnable> queue = new ArrayList<Runnable>();
+    private boolean scheduled;
+    private long lastApplied;
+
+    private final Runnable apply = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    /**
+     * Queues a change to be applied on the event dispatch thread
+     */
+    public void publish(Runnable change) {
+        long delay;
+        synchronized (this) {
+            queue.add(change);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            delay = lastApplied + INTERVAL - System.currentTimeMillis();
+        }
+        if (delay <= 0) {
+            SwingUtilities.invokeLater(apply);
+        } else {
+            Timer timer = new Timer((int) delay, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    applyPending();
+                }
+            });
+            timer.setRepeats(false);
+            timer.start();
+        }
+    }
+
+    /**
+     * Applies all queued changes immediately and waits for them to finish.
+     * If changes throw runtime exceptions, the others are still applied and
+     * the first exception is passed on to the caller; the rest are logged.
+     */
+    public void flush() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            applyPending();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(apply);
+        } catch (InterruptedException e) {
+            // the changes will still be applied as scheduled
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void applyPending() {
+        List<Runnable> changes;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<Runnable>(queue);
+            queue.clear();
+            scheduled = false;
+            lastApplied = System.currentTimeMillis();
+        }
+        // a failing change must not cost the ones queued after it
+        Throwable first = null;
+        for (Runnable change : changes) {
+            try {
+                change.run();
+            } catch (Throwable t) {
+                if (first == null) {
+                    first = t;
+                } else {
+                    Logger.getLogger(getClass()).error(
+                            "Error applying change", t);
+                }
+            }
+        }
+        if (first instanceof RuntimeException) {
+            throw (RuntimeException) first;
+        }
+        if (first instanceof Error) {
+            throw (Error) first;
+        }
+        if (first != null) {
+            // checked exceptions thrown by Groovy closures
+            throw new IllegalStateException(first);
+        }
+    }
+}
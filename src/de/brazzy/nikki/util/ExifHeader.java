@@ -0,0 +1,466 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only parser for the EXIF data of a JPEG file. Reads only the APP1
+ * segment and decodes the few tags needed when scanning directly from the
+ * buffer, without building an object model of the IFDs.
+ *
+ * @author Michael Borgwardt
+ */
+public class ExifHeader {
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_DATETIME = 0x0132;
+    public static final int TAG_EXIF_IFD = 0x8769;
+    public static final int TAG_GPS_IFD = 0x8825;
+    public static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    public static final int TAG_APPLICATIONNOTE = 700;
+    public static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    public static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    /** Identify the IFDs for {@link ExifPatch} */
+    public static final int IFD_MAIN = 0;
+    public static final int IFD_EXIF = 1;
+    public static final int IFD_GPS = 2;
+    public static final int IFD_APPNOTE = 3;
+
+    public static final int GPS_LATITUDE_REF = 1;
+    public static final int GPS_LATITUDE = 2;
+    public static final int GPS_LONGITUDE_REF = 3;
+    public static final int GPS_LONGITUDE = 4;
+
+    static final int TYPE_BYTE = 1;
+    static final int TYPE_ASCII = 2;
+    static final int TYPE_SHORT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_RATIONAL = 5;
+    static final int TYPE_UNDEFINED = 7;
+    static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4,
+            8, 4, 8 };
+
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final byte[] EXIF_ID = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /** Size of the initial read, enough for the APP1 segment of most files */
+    private static final int INITIAL_READ = 16 * 1024;
+
+    /** TIFF structure contained in the APP1 segment */
+    private final ByteBuffer tiff;
+    /** Position of the TIFF structure in the file */
+    private final long tiffOffset;
+    private final int ifd0;
+    private final int ifd1;
+    private final int exifIfd;
+    private final int gpsIfd;
+    private final int appNoteIfd;
+
+    private ExifHeader(ByteBuffer tiff, long tiffOffset) throws IOException {
+        this.tiff = tiff;
+        this.tiffOffset = tiffOffset;
+        if (tiff.remaining() < 8) {
+            throw new IOException("Truncated EXIF header");
+        }
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new IOException("Invalid TIFF byte order in EXIF header");
+        }
+        ifd0 = checkIfd(tiff.getInt(4));
+        ifd1 = nextIfd(ifd0);
+        exifIfd = subIfd(ifd0, TAG_EXIF_IFD);
+        gpsIfd = subIfd(ifd0, TAG_GPS_IFD);
+        appNoteIfd = subIfd(exifIfd, TAG_APPLICATIONNOTE);
+    }
+
+    /**
+     * @return the EXIF data of the file, null if it has none
+     * @throws IOException
+     *             if the file cannot be read or is not a JPEG
+     */
+    public static ExifHeader read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long[] offset = new long[1];
+            ByteBuffer segment = findApp1(in.getChannel(), offset);
+            return segment == null ? null : new ExifHeader(segment, offset[0]);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param offset
+     *            receives the file position of the returned TIFF data
+     */
+    private static ByteBuffer findApp1(FileChannel channel, long[] offset)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INITIAL_READ);
+        channel.read(buf, 0);
+        buf.flip();
+        if (buf.remaining() < 4 || (buf.get(0) & 0xFF) != 0xFF
+                || (buf.get(1) & 0xFF) != 0xD8) {
+            throw new IOException("Not a JPEG file");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long pos = 2;
+        while (true) {
+            int marker;
+            int length;
+            if (pos + 4 <= buf.limit()) {
+                marker = buf.getShort((int) pos) & 0xFFFF;
+                length = buf.getShort((int) pos + 2) & 0xFFFF;
+            } else {
+                // segment header beyond the initial read
+                header.clear();
+                if (channel.read(header, pos) < 4) {
+                    return null;
+                }
+                marker = header.getShort(0) & 0xFFFF;
+                length = header.getShort(2) & 0xFFFF;
+            }
+            if ((marker >> 8) != 0xFF || (marker & 0xFF) == MARKER_SOS
+                    || (marker & 0xFF) == MARKER_EOI) {
+                return null;
+            }
+            if ((marker & 0xFF) == MARKER_APP1) {
+                ByteBuffer segment = segment(channel, buf, pos + 4, length - 2);
+                if (segment != null && isExif(segment)) {
+                    offset[0] = pos + 4 + EXIF_ID.length;
+                    segment.position(EXIF_ID.length);
+                    return segment.slice();
+                }
+            }
+            pos += 2 + length;
+        }
+    }
+
+    private static ByteBuffer segment(FileChannel channel, ByteBuffer buf,
+            long start, int length) throws IOException {
+        if (length < EXIF_ID.length) {
+            return null;
+        }
+        ByteBuffer result;
+        if (start + length <= buf.limit()) {
+            buf.limit((int) (start + length));
+            buf.position((int) start);
+            result = buf.slice();
+            buf.clear();
+        } else {
+            result = ByteBuffer.allocate(length);
+            while (result.hasRemaining()) {
+                if (channel.read(result, start + result.position()) < 0) {
+                    throw new IOException("Truncated EXIF segment");
+                }
+            }
+            result.flip();
+        }
+        return result;
+    }
+
+    private static boolean isExif(ByteBuffer segment) {
+        for (int i = 0; i < EXIF_ID.length; i++) {
+            if (segment.get(i) != EXIF_ID[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ByteBuffer buffer() {
+        return tiff;
+    }
+
+    long getTiffOffset() {
+        return tiffOffset;
+    }
+
+    /**
+     * @param kind
+     *            one of the IFD_ constants
+     * @return position of the IFD, -1 if not present
+     */
+    int ifd(int kind) {
+        switch (kind) {
+        case IFD_MAIN:
+            return ifd0;
+        case IFD_EXIF:
+            return exifIfd;
+        case IFD_GPS:
+            return gpsIfd;
+        case IFD_APPNOTE:
+            return appNoteIfd;
+        default:
+            throw new IllegalArgumentException("Unknown IFD " + kind);
+        }
+    }
+
+    private int checkIfd(int offset) {
+        if (offset <= 0 || offset + 2 > tiff.limit()) {
+            return -1;
+        }
+        return offset;
+    }
+
+    private int nextIfd(int ifd) {
+        if (ifd < 0) {
+            return -1;
+        }
+        int link = ifd + 2 + 12 * entryCount(ifd);
+        return link + 4 > tiff.limit() ? -1 : checkIfd(tiff.getInt(link));
+    }
+
+    private int entryCount(int ifd) {
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        return Math.min(count, (tiff.limit() - ifd - 2) / 12);
+    }
+
+    /**
+     * @return position of the entry with the given tag, -1 if not present
+     */
+    int find(int ifd, int tag) {
+        if (ifd < 0) {
+            return -1;
+        }
+        int count = entryCount(ifd);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private int subIfd(int ifd, int tag) {
+        int entry = find(ifd, tag);
+        if (entry < 0 || type(entry) != TYPE_LONG) {
+            return -1;
+        }
+        return checkIfd(tiff.getInt(entry + 8));
+    }
+
+    int type(int entry) {
+        return tiff.getShort(entry + 2) & 0xFFFF;
+    }
+
+    int count(int entry) {
+        return tiff.getInt(entry + 4);
+    }
+
+    /**
+     * @return position of the entry's data, -1 if it is outside the buffer
+     */
+    int valueOffset(int entry) {
+        int type = type(entry);
+        if (type >= TYPE_SIZES.length || count(entry) < 0) {
+            return -1;
+        }
+        long size = (long) TYPE_SIZES[type] * count(entry);
+        int offset = size <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        if (offset < 0 || offset + size > tiff.limit()) {
+            return -1;
+        }
+        return offset;
+    }
+
+    private int intValue(int entry, int defaultValue) {
+        if (entry < 0) {
+            return defaultValue;
+        }
+        int offset = valueOffset(entry);
+        if (offset < 0 || count(entry) < 1) {
+            return defaultValue;
+        }
+        switch (type(entry)) {
+        case TYPE_BYTE:
+        case TYPE_UNDEFINED:
+            return tiff.get(offset) & 0xFF;
+        case TYPE_SHORT:
+            return tiff.getShort(offset) & 0xFFFF;
+        case TYPE_LONG:
+            return tiff.getInt(offset);
+        default:
+            return defaultValue;
+        }
+    }
+
+    private byte[] bytes(int entry) {
+        if (entry < 0) {
+            return null;
+        }
+        int offset = valueOffset(entry);
+        int type = type(entry);
+        if (offset < 0
+                || (type != TYPE_ASCII && type != TYPE_BYTE && type != TYPE_UNDEFINED)) {
+            return null;
+        }
+        byte[] result = new byte[count(entry)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = tiff.get(offset + i);
+        }
+        return result;
+    }
+
+    private String string(int entry) {
+        byte[] bytes = bytes(entry);
+        if (bytes == null) {
+            return null;
+        }
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        try {
+            return new String(bytes, 0, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("Can't happen", ex);
+        }
+    }
+
+    /**
+     * @return EXIF orientation value, -1 if not present
+     */
+    public int getOrientation() {
+        return intValue(find(ifd0, TAG_ORIENTATION), -1);
+    }
+
+    /**
+     * @return the time the image was taken, or if not present the time it
+     *         was last modified, in EXIF format; null if neither is present
+     */
+    public String getDateTimeOriginal() {
+        String result = string(find(exifIfd, TAG_DATETIME_ORIGINAL));
+        if (result != null && result.indexOf("0000:00:00") < 0) {
+            return result;
+        }
+        return string(find(ifd0, TAG_DATETIME));
+    }
+
+    /**
+     * @return the embedded JPEG thumbnail, null if there is none
+     */
+    public byte[] getThumbnail() {
+        int offset = intValue(find(ifd1, TAG_THUMBNAIL_OFFSET), 0);
+        int length = intValue(find(ifd1, TAG_THUMBNAIL_LENGTH), 0);
+        if (offset <= 0 || length <= 100 || offset + length > tiff.limit()) {
+            return null;
+        }
+        // skip any padding before the SOI marker
+        int start = offset;
+        int end = offset + length;
+        while (start < end - 1
+                && !(tiff.get(start) == (byte) 0xFF && tiff.get(start + 1) == (byte) 0xD8)) {
+            start++;
+        }
+        if (start >= end - 100) {
+            return null;
+        }
+        byte[] result = new byte[end - start];
+        ByteBuffer src = tiff.duplicate();
+        src.position(start);
+        src.get(result);
+        return result;
+    }
+
+    /**
+     * @return true if the file contains a GPS IFD
+     */
+    public boolean hasGps() {
+        return gpsIfd >= 0;
+    }
+
+    /**
+     * @return the value of a GPS reference tag (e.g. "N"), null if absent
+     */
+    public String getGpsRef(int tag) {
+        return string(find(gpsIfd, tag));
+    }
+
+    /**
+     * @return a GPS coordinate stored as arc degree, minute and second
+     *         values, NaN if absent
+     */
+    public float getGpsMagnitude(int tag) {
+        int entry = find(gpsIfd, tag);
+        if (entry < 0 || type(entry) != TYPE_RATIONAL || count(entry) < 1) {
+            return Float.NaN;
+        }
+        int offset = valueOffset(entry);
+        if (offset < 0) {
+            return Float.NaN;
+        }
+        float result = rational(offset);
+        if (count(entry) > 1) {
+            result += rational(offset + 8) / 60.0;
+        }
+        if (count(entry) > 2) {
+            result += rational(offset + 16) / (60.0 * 60.0);
+        }
+        return result;
+    }
+
+    private float rational(int offset) {
+        return (float) tiff.getInt(offset) / (float) tiff.getInt(offset + 4);
+    }
+
+    /**
+     * @return true if the EXIF IFD contains an application notes IFD
+     */
+    public boolean hasAppNote() {
+        return appNoteIfd >= 0;
+    }
+
+    /**
+     * @return text value of an entry in the application notes IFD, null if
+     *         absent
+     */
+    public String getAppNoteString(int tag) {
+        return string(find(appNoteIfd, tag));
+    }
+
+    /**
+     * @return raw content of an entry in the application notes IFD, null if
+     *         absent
+     */
+    public byte[] getAppNoteBytes(int tag) {
+        return bytes(find(appNoteIfd, tag));
+    }
+
+    /**
+     * @return numeric value of an entry in the application notes IFD,
+     *         defaultValue if absent
+     */
+    public int getAppNoteInt(int tag, int defaultValue) {
+        return intValue(find(appNoteIfd, tag), defaultValue);
+    }
+}
@@ -0,0 +1,207 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Changes values of existing EXIF entries in place, so that only the
+ * changed bytes of the file need to be written. A value that is longer
+ * than the space it currently occupies is moved into the space reserved
+ * by a padding entry in the application notes IFD, if there is enough
+ * left. When an entry is missing or a value does not fit,
+ * {@link #isComplete()} returns false and the file has to be rewritten
+ * completely instead.
+ * <p>
+ * Changes are applied to the buffer of the {@link ExifHeader} immediately.
+ * Only bytes that actually differ count as changed, so setting the values
+ * the file already contains results in nothing being written.
+ *
+ * @author Michael Borgwardt
+ */
+public class ExifPatch {
+    private final ExifHeader header;
+    private final ByteBuffer tiff;
+    private final int paddingTag;
+    private boolean complete = true;
+    private int dirtyStart = Integer.MAX_VALUE;
+    private int dirtyEnd = -1;
+
+    /**
+     * @param paddingTag
+     *            tag of the UNDEFINED entry in the application notes IFD
+     *            whose space may be used for longer values
+     */
+    public ExifPatch(ExifHeader header, int paddingTag) {
+        this.header = header;
+        this.tiff = header.buffer();
+        this.paddingTag = paddingTag;
+    }
+
+    /**
+     * @return false if any of the changes could not be made in place
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true if any of the values differ from those in the file
+     */
+    public boolean isChanged() {
+        return dirtyEnd >= 0;
+    }
+
+    /**
+     * @param ifd
+     *            one of the IFD_ constants in {@link ExifHeader}
+     */
+    public void setAscii(int ifd, int tag, String value) {
+        try {
+            byte[] chars = value.getBytes("ISO-8859-1");
+            byte[] data = new byte[chars.length + 1];
+            System.arraycopy(chars, 0, data, 0, chars.length);
+            set(ifd, tag, ExifHeader.TYPE_ASCII, data);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("Can't happen", ex);
+        }
+    }
+
+    public void setBytes(int ifd, int tag, byte[] value) {
+        set(ifd, tag, ExifHeader.TYPE_UNDEFINED, value);
+    }
+
+    public void setByte(int ifd, int tag, int value) {
+        set(ifd, tag, ExifHeader.TYPE_BYTE, new byte[] { (byte) value });
+    }
+
+    /**
+     * @param values
+     *            alternating numerators and denominators
+     */
+    public void setRationals(int ifd, int tag, int... values) {
+        ByteBuffer data = ByteBuffer.allocate(4 * values.length).order(
+                tiff.order());
+        for (int value : values) {
+            data.putInt(value);
+        }
+        set(ifd, tag, ExifHeader.TYPE_RATIONAL, data.array());
+    }
+
+    private void set(int ifd, int tag, int type, byte[] data) {
+        int entry = header.find(header.ifd(ifd), tag);
+        if (!complete || entry < 0 || header.type(entry) != type) {
+            complete = false;
+            return;
+        }
+        int oldOffset = header.valueOffset(entry);
+        int oldSize = ExifHeader.TYPE_SIZES[type] * header.count(entry);
+        int offset;
+        if (data.length <= 4) {
+            offset = entry + 8;
+        } else if (oldSize > 4 && oldOffset >= 0 && data.length <= oldSize) {
+            offset = oldOffset;
+        } else {
+            offset = allocate(data.length);
+            if (offset < 0) {
+                complete = false;
+                return;
+            }
+            putInt(entry + 8, offset);
+        }
+
+        put(offset, data);
+        if (data.length < 4) {
+            put(offset + data.length, new byte[4 - data.length]);
+        }
+        putInt(entry + 4, data.length / ExifHeader.TYPE_SIZES[type]);
+    }
+
+    /**
+     * Takes space from the start of the padding entry
+     *
+     * @return position of the space, -1 if not enough is left
+     */
+    private int allocate(int size) {
+        int padding = header.find(header.ifd(ExifHeader.IFD_APPNOTE),
+                paddingTag);
+        if (padding < 0 || header.type(padding) != ExifHeader.TYPE_UNDEFINED) {
+            return -1;
+        }
+        int offset = header.valueOffset(padding);
+        int aligned = (size + 1) & ~1;
+        // the rest must stay larger than 4 bytes, or it would become inline
+        if (offset < 0 || header.count(padding) - aligned <= 4) {
+            return -1;
+        }
+        putInt(padding + 4, header.count(padding) - aligned);
+        putInt(padding + 8, offset + aligned);
+        return offset;
+    }
+
+    private void put(int offset, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (tiff.get(offset + i) != data[i]) {
+                tiff.put(offset + i, data[i]);
+                dirty(offset + i, offset + i + 1);
+            }
+        }
+    }
+
+    private void putInt(int offset, int value) {
+        if (tiff.getInt(offset) != value) {
+            tiff.putInt(offset, value);
+            dirty(offset, offset + 4);
+        }
+    }
+
+    private void dirty(int start, int end) {
+        dirtyStart = Math.min(dirtyStart, start);
+        dirtyEnd = Math.max(dirtyEnd, end);
+    }
+
+    /**
+     * Writes the changed part of the EXIF data back to the file it was read
+     * from
+     */
+    public void write(File file) throws IOException {
+        if (!complete) {
+            throw new IllegalStateException("Changes do not fit in place");
+        }
+        if (dirtyEnd < 0) {
+            return;
+        }
+        ByteBuffer changed = tiff.duplicate();
+        changed.limit(dirtyEnd);
+        changed.position(dirtyStart);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long position = header.getTiffOffset() + dirtyStart;
+            while (changed.hasRemaining()) {
+                position += out.getChannel().write(changed, position);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
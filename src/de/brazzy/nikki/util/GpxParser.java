@@ -0,0 +1,118 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Streaming parser for the track points (trkpt elements) in GPX 1.0 and
+ * 1.1 files. Points without a timestamp are ignored.
+ *
+ * @author Michael Borgwardt
+ */
+public class GpxParser implements TrackParser {
+    private static final DateTimeFormatter TIME_FORMAT = ISODateTimeFormat
+            .dateTimeParser().withZone(DateTimeZone.UTC);
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory
+            .newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    @Override
+    public void parse(File file, TrackPointHandler handler) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                parse(reader, handler);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            IOException ex = new IOException("Invalid GPX file: "
+                    + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void parse(XMLStreamReader reader, TrackPointHandler handler)
+            throws XMLStreamException {
+        boolean inPoint = false;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        long time = 0;
+        boolean hasTime = false;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("trkpt".equals(name)) {
+                    inPoint = true;
+                    lat = parseDouble(reader.getAttributeValue(null, "lat"));
+                    lon = parseDouble(reader.getAttributeValue(null, "lon"));
+                    hasTime = false;
+                } else if (inPoint && "time".equals(name)) {
+                    try {
+                        time = TIME_FORMAT.parseMillis(reader.getElementText()
+                                .trim());
+                        hasTime = true;
+                    } catch (IllegalArgumentException e) {
+                        hasTime = false;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT
+                    && "trkpt".equals(reader.getLocalName())) {
+                if (hasTime && !Double.isNaN(lat) && !Double.isNaN(lon)) {
+                    handler.point(lat, lon, time);
+                }
+                inPoint = false;
+            }
+        }
+    }
+
+    private static double parseDouble(String s) {
+        if (s == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import mediautil.image.jpeg.LLJTran;
+
+/**
+ * Replaces the APPx segments of a JPEG file with those held by an
+ * {@link LLJTran} that has read only the headers. The other header segments
+ * (COM, DQT, DHT, SOF etc.) and the remainder of the file starting at SOS are
+ * copied from channel to channel without passing through the heap, so memory
+ * use does not depend on the size of the image.
+ *
+ * @author Michael Borgwardt
+ */
+public class HeaderRewriter {
+    private static final int MARKER_SOI = 0xFFD8;
+    private static final int MARKER_APP0 = 0xFFE0;
+    private static final int MARKER_APP15 = 0xFFEF;
+    private static final int MARKER_SOS = 0xFFDA;
+    private static final int MARKER_EOI = 0xFFD9;
+
+    private HeaderRewriter() {
+    }
+
+    /**
+     * @param llj
+     *            has read the file with {@link LLJTran#READ_INFO} and had its
+     *            APPx segments refreshed with {@link LLJTran#refreshAppx()}
+     */
+    public static void rewrite(File file, LLJTran llj) throws IOException {
+        File tmpFile = File.createTempFile("nikki", "tmp", new File(file
+                .getParent()));
+        FileInputStream in = new FileInputStream(file);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            List<long[]> segments = new ArrayList<long[]>();
+            long start = imageDataOffset(source, segments);
+
+            writeFully(target, marker(MARKER_SOI));
+            for (int i = 0; i < llj.getNumAppxs(); i++) {
+                byte[] appx = new byte[llj.getAppxLen(i)];
+                llj.getAppx(i, appx, 0, appx.length);
+                writeFully(target, ByteBuffer.wrap(appx));
+            }
+            for (long[] segment : segments) {
+                transfer(source, segment[0], segment[1], target);
+            }
+            transfer(source, start, source.size(), target);
+        } catch (IOException e) {
+            out.close();
+            tmpFile.delete();
+            throw e;
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        if (!file.delete()) {
+            throw new IllegalStateException();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Walks the header segments, which LLJTran reads up to SOS no matter
+     * whether they are interspersed with other segments
+     * 
+     * @param segments
+     *            receives the start and end of each header segment that is
+     *            not an APPx segment
+     * @return position of the SOS marker
+     */
+    private static long imageDataOffset(FileChannel channel,
+            List<long[]> segments) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, 0, 2);
+        if ((header.getShort(0) & 0xFFFF) != MARKER_SOI) {
+            throw new IOException("Not a JPEG file");
+        }
+        long pos = 2;
+        while (true) {
+            readFully(channel, header, pos, 2);
+            int marker = header.getShort(0) & 0xFFFF;
+            if (marker == 0xFFFF) {
+                // fill byte before a marker
+                pos++;
+                continue;
+            }
+            if ((marker & 0xFF00) != 0xFF00) {
+                throw new IOException("Invalid JPEG marker at " + pos);
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return pos;
+            }
+            readFully(channel, header, pos, 4);
+            long end = pos + 2 + (header.getShort(2) & 0xFFFF);
+            if (marker < MARKER_APP0 || marker > MARKER_APP15) {
+                segments.add(new long[] { pos, end });
+            }
+            pos = end;
+        }
+    }
+
+    private static void transfer(FileChannel source, long start, long end,
+            FileChannel target) throws IOException {
+        while (start < end) {
+            long copied = source.transferTo(start, end - start, target);
+            if (copied <= 0) {
+                throw new IOException("Could not copy image data");
+            }
+            start += copied;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+            long pos, int length) throws IOException {
+        buf.clear();
+        buf.limit(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Truncated JPEG file");
+            }
+        }
+    }
+
+    private static ByteBuffer marker(int marker) {
+        ByteBuffer result = ByteBuffer.allocate(2);
+        result.putShort(0, (short) marker);
+        return result;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data)
+            throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
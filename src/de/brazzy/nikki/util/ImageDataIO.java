@@ -44,6 +44,8 @@ public abstract class ImageDataIO {
     protected static final int ENTRY_TITLE_INDEX = 3;
     protected static final int ENTRY_DESCRIPTION_INDEX = 4;
     protected static final int ENTRY_EXPORT_INDEX = 5;
+    /** reserved space for values that outgrow their entries, see ExifPatch */
+    protected static final int ENTRY_PADDING_INDEX = 6;
 
     /** File to read from / write to */
     protected File file;
@@ -69,6 +71,17 @@ public abstract class ImageDataIO {
     /** Thrown while reading headers */
     protected Exception createException;
 
+    /**
+     * Does not read anything, for subclasses that parse the headers
+     * themselves or read them later with {@link #readHeaders(int)}
+     * 
+     * @param file
+     *            to read from
+     */
+    protected ImageDataIO(File file) {
+        this.file = file;
+    }
+
     /**
      * Read EXIF headers
      * 
@@ -78,8 +91,18 @@ public abstract class ImageDataIO {
      *            see {@link LLJTran#read(int, boolean)}
      */
     public ImageDataIO(File file, int readUpto) {
+        this(file);
+        readHeaders(readUpto);
+    }
+
+    /**
+     * Read EXIF headers, for subclasses that used {@link #ImageDataIO(File)}
+     * 
+     * @param readUpto
+     *            see {@link LLJTran#read(int, boolean)}
+     */
+    protected void readHeaders(int readUpto) {
         try {
-            this.file = file;
             this.llj = new LLJTran(file);
             llj.read(readUpto, true);
             initMainIFD();
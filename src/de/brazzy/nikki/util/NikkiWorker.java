@@ -50,4 +50,15 @@ public abstract class NikkiWorker extends SwingWorker<Void, Void> {
     public void setLabelUpdate(String currentItem) {
         firePropertyChange(LABEL, null, currentItem);
     }
+
+    /**
+     * Makes {@link #setProgress(int)} available to code that reports
+     * progress on behalf of the worker, from any thread.
+     * 
+     * @param progress
+     *            from 0 to 100
+     */
+    public void setProgressUpdate(int progress) {
+        setProgress(progress);
+    }
 }
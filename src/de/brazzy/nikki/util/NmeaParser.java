@@ -0,0 +1,314 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.joda.time.Chronology;
+import org.joda.time.chrono.ISOChronology;
+
+/**
+ * Streaming parser for NMEA 0183 logs. Reads RMC sentences (which carry
+ * the date) and GGA sentences (which don't, and are merged with the RMC
+ * sentence for the same second when present). Sentences with an invalid
+ * checksum or without a valid fix are ignored.
+ *
+ * Works directly on the bytes read through a FileChannel, without creating
+ * intermediate objects per sentence. Not thread-safe; use one instance per
+ * file.
+ *
+ * @author Michael Borgwardt
+ */
+public class NmeaParser implements TrackParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIELDS = 20;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final long UNKNOWN = Long.MIN_VALUE;
+    private static final Chronology UTC = ISOChronology.getInstanceUTC();
+
+    private TrackPointHandler handler;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    /** start of the UTC day of the last RMC sentence */
+    private long lastDate;
+    private long lastTimeOfDay;
+    private long lastEmitted;
+
+    /** GGA sentence waiting for a possible RMC sentence of the same second */
+    private boolean hasPending;
+    private double pendingLat;
+    private double pendingLon;
+    private long pendingTimeOfDay;
+
+    @Override
+    public void parse(File file, TrackPointHandler handler) throws IOException {
+        this.handler = handler;
+        lastDate = UNKNOWN;
+        lastTimeOfDay = UNKNOWN;
+        lastEmitted = UNKNOWN;
+        hasPending = false;
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] data = buf.array();
+            while (true) {
+                int read = channel.read(buf);
+                int end = buf.position();
+                int lineStart = 0;
+                for (int i = 0; i < end; i++) {
+                    if (data[i] == '\n') {
+                        line(data, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (read < 0) {
+                    line(data, lineStart, end);
+                    break;
+                }
+                if (lineStart == 0 && end == data.length) {
+                    // overlong line, can't be NMEA
+                    buf.clear();
+                } else {
+                    buf.position(lineStart);
+                    buf.limit(end);
+                    buf.compact();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        flushPending();
+        this.handler = null;
+    }
+
+    private void line(byte[] b, int start, int end) {
+        while (end > start && (b[end - 1] == '\r' || b[end - 1] == ' ')) {
+            end--;
+        }
+        if (end - start < 7 || b[start] != '$') {
+            return;
+        }
+
+        int star = end - 3;
+        if (star > start && b[star] == '*') {
+            int expected = (hex(b[star + 1]) << 4) | hex(b[star + 2]);
+            int checksum = 0;
+            for (int i = start + 1; i < star; i++) {
+                checksum ^= b[i];
+            }
+            if (expected != (checksum & 0xff)) {
+                return;
+            }
+            end = star;
+        }
+
+        fieldCount = 0;
+        int s = start;
+        for (int i = start; i <= end && fieldCount < MAX_FIELDS; i++) {
+            if (i == end || b[i] == ',') {
+                fieldStart[fieldCount] = s;
+                fieldEnd[fieldCount] = i;
+                fieldCount++;
+                s = i + 1;
+            }
+        }
+        if (fieldEnd[0] - fieldStart[0] != 6) {
+            return;
+        }
+        int type = fieldEnd[0] - 3;
+        if (b[type] == 'R' && b[type + 1] == 'M' && b[type + 2] == 'C') {
+            rmc(b);
+        } else if (b[type] == 'G' && b[type + 1] == 'G'
+                && b[type + 2] == 'A') {
+            gga(b);
+        }
+    }
+
+    private void rmc(byte[] b) {
+        if (fieldCount < 10 || !isField(b, 2, 'A')) {
+            return;
+        }
+        long timeOfDay = time(b, 1);
+        double lat = coordinate(b, 3, 'S');
+        double lon = coordinate(b, 5, 'W');
+        long date = date(b, 9);
+        if (timeOfDay == UNKNOWN || date == UNKNOWN || Double.isNaN(lat)
+                || Double.isNaN(lon)) {
+            return;
+        }
+
+        if (hasPending && pendingTimeOfDay == timeOfDay) {
+            hasPending = false;
+        } else {
+            flushPending();
+        }
+        lastDate = date;
+        lastTimeOfDay = timeOfDay;
+        emit(lat, lon, date + timeOfDay);
+    }
+
+    private void gga(byte[] b) {
+        if (fieldCount < 7 || fieldEnd[6] == fieldStart[6]
+                || isField(b, 6, '0')) {
+            return;
+        }
+        long timeOfDay = time(b, 1);
+        double lat = coordinate(b, 2, 'S');
+        double lon = coordinate(b, 4, 'W');
+        if (timeOfDay == UNKNOWN || Double.isNaN(lat) || Double.isNaN(lon)) {
+            return;
+        }
+
+        if (hasPending && pendingTimeOfDay != timeOfDay) {
+            flushPending();
+        }
+        hasPending = true;
+        pendingLat = lat;
+        pendingLon = lon;
+        pendingTimeOfDay = timeOfDay;
+    }
+
+    private void flushPending() {
+        if (!hasPending) {
+            return;
+        }
+        hasPending = false;
+        if (lastDate == UNKNOWN) {
+            return;
+        }
+        long date = lastDate;
+        if (pendingTimeOfDay < lastTimeOfDay) {
+            date += MILLIS_PER_DAY;
+        }
+        emit(pendingLat, pendingLon, date + pendingTimeOfDay);
+    }
+
+    private void emit(double lat, double lon, long time) {
+        if (time != lastEmitted) {
+            lastEmitted = time;
+            handler.point(lat, lon, time);
+        }
+    }
+
+    private boolean isField(byte[] b, int field, char c) {
+        return fieldEnd[field] - fieldStart[field] == 1
+                && b[fieldStart[field]] == c;
+    }
+
+    /**
+     * @return degrees from a ddmm.mmmm field followed by a hemisphere field
+     */
+    private double coordinate(byte[] b, int field, char negative) {
+        double value = decimal(b, fieldStart[field], fieldEnd[field]);
+        if (Double.isNaN(value) || fieldEnd[field + 1] == fieldStart[field + 1]) {
+            return Double.NaN;
+        }
+        int degrees = (int) (value / 100);
+        double result = degrees + (value - degrees * 100) / 60;
+        return b[fieldStart[field + 1]] == negative ? -result : result;
+    }
+
+    /**
+     * @return milliseconds of day from a hhmmss.sss field
+     */
+    private long time(byte[] b, int field) {
+        double value = decimal(b, fieldStart[field], fieldEnd[field]);
+        if (Double.isNaN(value)) {
+            return UNKNOWN;
+        }
+        int hhmmss = (int) value;
+        int hours = hhmmss / 10000;
+        int minutes = hhmmss / 100 % 100;
+        int seconds = hhmmss % 100;
+        if (hours > 23 || minutes > 59 || seconds > 60) {
+            return UNKNOWN;
+        }
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000L
+                + Math.round((value - hhmmss) * 1000);
+    }
+
+    /**
+     * @return start of UTC day from a ddmmyy field
+     */
+    private long date(byte[] b, int field) {
+        double value = decimal(b, fieldStart[field], fieldEnd[field]);
+        if (Double.isNaN(value)) {
+            return UNKNOWN;
+        }
+        int ddmmyy = (int) value;
+        int year = ddmmyy % 100;
+        year += year < 80 ? 2000 : 1900;
+        try {
+            return UTC.getDateTimeMillis(year, ddmmyy / 100 % 100,
+                    ddmmyy / 10000, 0);
+        } catch (IllegalArgumentException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return value of an unsigned decimal number, NaN if empty or malformed
+     */
+    private static double decimal(byte[] b, int start, int end) {
+        if (start == end) {
+            return Double.NaN;
+        }
+        long mantissa = 0;
+        long divisor = 1;
+        boolean fraction = false;
+        for (int i = start; i < end; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa < Long.MAX_VALUE / 100) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        divisor *= 10;
+                    }
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        return mantissa / (double) divisor;
+    }
+
+    private static int hex(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return 0x100;
+    }
+}
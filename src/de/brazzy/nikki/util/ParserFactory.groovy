@@ -23,6 +23,11 @@ import slash.navigation.base.BaseRoute;
 import slash.navigation.base.NavigationFileParser;
 import slash.navigation.base.NavigationFileParserListener;
 import slash.navigation.base.NavigationFormat;
+import slash.navigation.kml.Kml20Format;
+import slash.navigation.kml.Kml21Format;
+import slash.navigation.kml.Kml22BetaFormat;
+import slash.navigation.kml.Kml22Format;
+import slash.navigation.nmea.NmeaFormat;
 
 /**
  * Finds parsers for GPS log files using RouteConverter API
@@ -31,11 +36,69 @@ import slash.navigation.base.NavigationFormat;
  */
 class ParserFactory {
     
+    /** RouteConverter formats for KML files, keyed on their XML namespace */
+    private static final Map<String, Class<? extends NavigationFormat>> KML_FORMATS = [
+        "http://www.opengis.net/kml/2.2": Kml22Format,
+        "http://earth.google.com/kml/2.2": Kml22BetaFormat,
+        "http://earth.google.com/kml/2.1": Kml21Format,
+        "http://earth.google.com/kml/2.0": Kml20Format
+    ]
+    
+    /**
+     * @return parser for the given file, null if it is not a GPS log
+     */
     public NavigationFormat findParser(File file) {
+        return findParser(file, TrackFileType.detect(file))
+    }
+    
+    /**
+     * @param hint type of the file, as determined by {@link TrackFileType#detect(File)}
+     * @return parser for the given file, null if it is not a GPS log
+     */
+    public NavigationFormat findParser(File file, TrackFileType hint) {
+        switch(hint) {
+            case TrackFileType.NO_TRACK:
+                return null
+            case TrackFileType.NMEA:
+                return new NmeaFormat()
+            case TrackFileType.KML:
+                def format = findKmlFormat(file)
+                if(format) {
+                    return format
+                }
+                break
+        }
+        // no hint precise enough, have RouteConverter try all its formats
         def factory = new NavigationFileParser();
         def result
         factory.addNavigationFileParserListener({ result = it } as NavigationFileParserListener)
         factory.read(file)
         return result
     }
+    
+    /**
+     * @return RouteConverter format for the KML version declared in the
+     *         start of the file, null if none is recognized
+     */
+    private NavigationFormat findKmlFormat(File file) {
+        def start = new String(TrackFileType.readStart(file), "ISO-8859-1")
+        def entry = KML_FORMATS.find{ start.contains(it.key) }
+        return entry?.value?.newInstance()
+    }
+    
+    /**
+     * @param hint type of the file, as determined by {@link TrackFileType#detect(File)}
+     * @return streaming parser for the file type, null if there is none
+     *         and {@link #findParser(File, TrackFileType)} has to be used
+     */
+    public TrackParser findTrackParser(TrackFileType hint) {
+        switch(hint) {
+            case TrackFileType.NMEA:
+                return new NmeaParser()
+            case TrackFileType.GPX:
+                return new GpxParser()
+            default:
+                return null
+        }
+    }
 }
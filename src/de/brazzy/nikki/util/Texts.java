@@ -63,6 +63,10 @@ public final class Texts {
                 .getString("mainwindow.save_button");
         public static final String SAVE_TOOLTIP = bundle
                 .getString("mainwindow.save_tooltip");
+        public static final String EMBED_BUTTON = bundle
+                .getString("mainwindow.embed_button");
+        public static final String EMBED_TOOLTIP = bundle
+                .getString("mainwindow.embed_tooltip");
         public static final String GEOTAG_BUTTON = bundle
                 .getString("mainwindow.geotag_button");
         public static final String GEOTAG_TOOLTIP = bundle
@@ -138,6 +142,11 @@ public final class Texts {
                     .getString("dialogs.save.progress_header");
         }
 
+        public static class Embed {
+            public static final String PROGRESS_HEADER = bundle
+                    .getString("dialogs.embed.progress_header");
+        }
+
         public static class Scan {
             public static final String ERROR_PREFIX = bundle
                     .getString("dialogs.scan.error_prefix");
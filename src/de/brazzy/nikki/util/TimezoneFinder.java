@@ -18,89 +18,288 @@ package de.brazzy.nikki.util;
  *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.joda.time.DateTimeZone;
 
-import com.infomatiq.jsi.IntProcedure;
-import com.infomatiq.jsi.Point;
-import com.infomatiq.jsi.Rectangle;
-import com.infomatiq.jsi.rtree.RTree;
-
 /**
  * Responsible for finding the timezones in which GPS waypoints lie, which is
  * necessary to determine to which subjective day a waypoint belongs. This is
  * done by using a database derived from geonames.org to find the settlement
  * that is geographically closest to the waypoint and using its time zone.
+ * <p>
+ * The settlements are stored as a k-d tree in flat arrays, written by
+ * {@link #writeIndex(List, float[], float[], short[], OutputStream)} in a
+ * little-endian binary format:
+ * <ul>
+ * <li>the int {@link #MAGIC} and the int {@link #VERSION}</li>
+ * <li>the number of time zones as int, followed by each time zone ID as a
+ * short byte count and the UTF-8 bytes</li>
+ * <li>zero bytes up to the next multiple of 4</li>
+ * <li>the number of settlements as int, followed by all latitudes as floats,
+ * all longitudes as floats and all time zones as short indexes into the above
+ * list</li>
+ * <li>zero bytes up to the next multiple of 4</li>
+ * <li>the number of raster cells per degree as int, 0 if there is no raster,
+ * otherwise followed by the number of runs as int, the index of the first run
+ * of each raster row and one more as ints, the column after each run as
+ * shorts and the time zone of each run as shorts</li>
+ * </ul>
+ * The settlement at the middle of a range of the arrays splits it in two,
+ * by latitude at even and by longitude at odd depths of the tree. Since
+ * nothing needs to be built, the index can be searched directly in a
+ * memory-mapped file.
+ * <p>
+ * The optional raster divides the world into cells of equal size in degrees,
+ * stored per row with run-length compression. A cell has a time zone if the
+ * nearest settlement of every point in it has that time zone, so that most
+ * lookups need no search at all. Cells near a border between time zones are
+ * marked {@link #AMBIGUOUS} and searched in the k-d tree.
+ * <p>
+ * Lookups do not modify any shared state except for caches that need no
+ * locks, so any number of threads can use a finder at the same time.
  * 
  * @see de.brazzy.nikki.util.PrepTimezoneData
- * @see timezones.dat
+ * @see timezones.idx
  * 
  * @author Michael Borgwardt
  */
 public class TimezoneFinder {
+    /** Start of the index format, "NKTZ" in little-endian byte order */
+    public static final int MAGIC = 0x5A544B4E;
+
+    /** Version of the index format */
+    public static final int VERSION = 2;
+
+    /** Name of the index resource in this package */
+    public static final String INDEX_RESOURCE = "timezones.idx";
+
+    /** Raster resolution used for {@link #INDEX_RESOURCE}, 0.05 degrees */
+    public static final int DEFAULT_CELLS_PER_DEGREE = 20;
+
+    /** Time zone of raster cells that need a search */
+    public static final short AMBIGUOUS = -1;
 
     /**
-     * Spatial index to find the geographically nearest settlement, value is an
-     * index into the zones list.
+     * Added to the radius that is checked for a raster cell, so that
+     * rounding in the search cannot yield another settlement
      */
-    private RTree tree;
+    private static final double RASTER_MARGIN = 1e-4;
+
+    /** Time zone IDs, in no particular order */
+    private String[] zoneIds;
 
     /**
-     * List of time zones in no particular order.
+     * Time zones for the IDs, created when first needed. Threads racing to
+     * create the same one are harmless, since DateTimeZone is immutable and
+     * forID() returns the same object every time.
      */
-    private List<DateTimeZone> zones;
+    private DateTimeZone[] zones;
+
+    private int size;
+    private FloatBuffer latitudes;
+    private FloatBuffer longitudes;
+    private ShortBuffer zoneIndices;
+
+    private int cellsPerDegree;
+    private IntBuffer rowStarts;
+    private ShortBuffer runEnds;
+    private ShortBuffer runZones;
+    private volatile boolean rasterEnabled = true;
+
+    /** Grid cells per degree used to quantize coordinates for the cache */
+    private static final int CELLS_PER_DEGREE = 100;
+
+    /** Number of cells kept in the cache, must be a power of 2 */
+    private static final int CACHE_SIZE = 4096;
+
+    /** Minimum number of waypoints worth looking up on a separate thread */
+    public static final int MIN_CHUNK_SIZE = 16384;
+
+    /**
+     * Results of previous lookups by {@link #find(float[], float[],
+     * DateTimeZone[])}. Each quantized coordinate has one slot, where a newer
+     * result replaces an older one.
+     */
+    private final AtomicReferenceArray<CacheEntry> cache = new AtomicReferenceArray<CacheEntry>(
+            CACHE_SIZE);
+
+    private static class CacheEntry {
+        private final long cell;
+        private final DateTimeZone zone;
+
+        private CacheEntry(long cell, DateTimeZone zone) {
+            this.cell = cell;
+            this.zone = zone;
+        }
+    }
 
     /**
      * Creates a finder containing no data, which can be used for tests
      */
     public TimezoneFinder() {
-        this.zones = new ArrayList<DateTimeZone>();
-        this.tree = new RTree();
-        Properties props = new Properties();
-        props.put("MaxNodeEntries", "50");
-        props.put("MinNodeEntries", "20");
-        tree.init(props);
+        this.zoneIds = new String[0];
+        this.zones = new DateTimeZone[0];
+    }
+
+    /**
+     * Uses an index without copying it
+     * 
+     * @param index
+     *            in the format described above, starting at its position
+     */
+    public TimezoneFinder(ByteBuffer index) throws IOException {
+        ByteBuffer data = index.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < 8 || data.getInt() != MAGIC
+                || data.getInt() != VERSION) {
+            throw new IOException("Not a time zone index");
+        }
+        zoneIds = new String[data.getInt()];
+        zones = new DateTimeZone[zoneIds.length];
+        for (int i = 0; i < zoneIds.length; i++) {
+            byte[] id = new byte[data.getShort()];
+            data.get(id);
+            zoneIds[i] = new String(id, "UTF-8");
+        }
+        data.position(data.position() + padding(data.position()
+                - index.position()));
+        size = data.getInt();
+        latitudes = slice(data, 4 * size).asFloatBuffer();
+        longitudes = slice(data, 4 * size).asFloatBuffer();
+        zoneIndices = slice(data, 2 * size).asShortBuffer();
+        data.position(data.position() + padding(data.position()
+                - index.position()));
+        cellsPerDegree = data.getInt();
+        if (cellsPerDegree > 0) {
+            int runs = data.getInt();
+            rowStarts = slice(data, 4 * (180 * cellsPerDegree + 1))
+                    .asIntBuffer();
+            runEnds = slice(data, 2 * runs).asShortBuffer();
+            runZones = slice(data, 2 * runs).asShortBuffer();
+        }
     }
 
     /**
-     * Parses the list of time zones and settelements
+     * Reads an index completely
      * 
      * @param zoneData
-     *            input to parse
+     *            input to read
      * 
      * @see de.brazzy.nikki.util.PrepTimezoneData
-     * @see timezones.dat
+     * @see timezones.idx
      */
     public TimezoneFinder(InputStream zoneData) throws IOException {
-        this();
-        ObjectInputStream data = new ObjectInputStream(zoneData);
-        parseZones(data);
-        parseTowns(data);
+        this(readFully(zoneData));
+    }
+
+    /**
+     * Maps an index file into memory
+     */
+    public TimezoneFinder(File indexFile) throws IOException {
+        this(map(indexFile));
+    }
+
+    /**
+     * @return a finder using the index in the resource
+     *         {@link #INDEX_RESOURCE}, memory-mapped if it is a file
+     */
+    public static TimezoneFinder createDefault() throws IOException {
+        URL url = TimezoneFinder.class.getResource(INDEX_RESOURCE);
+        if (url == null) {
+            throw new FileNotFoundException(INDEX_RESOURCE);
+        }
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new TimezoneFinder(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                // fall back to reading it as a stream
+            }
+        }
+        InputStream in = url.openStream();
+        try {
+            return new TimezoneFinder(in);
+        } finally {
+            in.close();
+        }
     }
 
-    private void parseTowns(ObjectInputStream data) throws IOException {
-        float lat = data.readFloat();
-        while (!Float.isNaN(lat)) {
-            float lng = data.readFloat();
-            short zone = data.readShort();
-            tree.add(new Rectangle(lat, lng, lat, lng), zone);
-            lat = data.readFloat();
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        byte[] buffer = new byte[1 << 16];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            out.write(buffer, 0, read);
         }
+        return ByteBuffer.wrap(out.toByteArray());
     }
 
-    private void parseZones(ObjectInputStream data) throws IOException {
-        for (String zone = data.readUTF(); !zone.equals(""); zone = data
-                .readUTF()) {
-            zones.add(DateTimeZone.forID(zone));
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        } finally {
+            raf.close();
         }
     }
 
+    private static ByteBuffer slice(ByteBuffer data, int length) {
+        ByteBuffer result = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        result.limit(length);
+        data.position(data.position() + length);
+        return result;
+    }
+
+    private static int padding(int length) {
+        return (4 - length % 4) % 4;
+    }
+
+    /**
+     * @return number of settlements in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return raster cells per degree, 0 if the index has no raster
+     */
+    public int getCellsPerDegree() {
+        return cellsPerDegree;
+    }
+
+    public boolean isRasterEnabled() {
+        return rasterEnabled;
+    }
+
+    /**
+     * @param rasterEnabled
+     *            whether to use the raster if the index has one, otherwise
+     *            every lookup searches the k-d tree
+     */
+    public void setRasterEnabled(boolean rasterEnabled) {
+        this.rasterEnabled = rasterEnabled;
+    }
+
     /**
      * Finds the timezone of a waypoint
      * 
@@ -115,19 +314,388 @@ public class TimezoneFinder {
      * Finds the timezone of a waypoint
      * 
      * @return the timezone of the settelement geographically closest to the
-     *         coordinates
+     *         coordinates, null if there are none or the coordinates are NaN
      */
     public DateTimeZone find(float latitude, float longitude) {
-        final DateTimeZone[] result = new DateTimeZone[1];
-        Point point = new Point(latitude, longitude);
-        IntProcedure callback = new IntProcedure() {
-            public boolean execute(int id) {
-                result[0] = zones.get(id);
-                return false;
+        if (rasterEnabled && cellsPerDegree > 0) {
+            short zone = rasterZone(latitude, longitude);
+            if (zone != AMBIGUOUS) {
+                return zone(zone);
             }
-        };
-        tree.nearest(point, callback, Float.POSITIVE_INFINITY);
-        return result[0];
+        }
+        Nearest nearest = new Nearest(latitude, longitude);
+        nearest.search(0, size, true);
+        return nearest.index < 0 ? null : zone(zoneIndices.get(nearest.index));
+    }
+
+    private DateTimeZone zone(int index) {
+        DateTimeZone zone = zones[index];
+        if (zone == null) {
+            zone = DateTimeZone.forID(zoneIds[index]);
+            zones[index] = zone;
+        }
+        return zone;
+    }
+
+    /**
+     * @return the time zone index of the raster cell containing the
+     *         coordinates, {@link #AMBIGUOUS} if the cell has none or the
+     *         coordinates lie outside the raster
+     */
+    private short rasterZone(float latitude, float longitude) {
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180
+                && longitude <= 180)) {
+            return AMBIGUOUS;
+        }
+        int row = Math.min((int) ((latitude + 90.0) * cellsPerDegree),
+                180 * cellsPerDegree - 1);
+        int column = Math.min((int) ((longitude + 180.0) * cellsPerDegree),
+                360 * cellsPerDegree - 1);
+        int low = rowStarts.get(row);
+        int high = rowStarts.get(row + 1) - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (runEnds.get(middle) <= column) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return runZones.get(low);
     }
 
+    /**
+     * State of a nearest neighbour search in the k-d tree
+     */
+    private class Nearest {
+        private final float latitude;
+        private final float longitude;
+        private int index = -1;
+        private float distance = Float.POSITIVE_INFINITY;
+
+        private Nearest(float latitude, float longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        private void search(int start, int end, boolean byLatitude) {
+            if (start >= end) {
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            float dLat = latitude - latitudes.get(middle);
+            float dLon = longitude - longitudes.get(middle);
+            float dist = dLat * dLat + dLon * dLon;
+            if (dist < distance) {
+                distance = dist;
+                index = middle;
+            }
+            float split = byLatitude ? dLat : dLon;
+            if (split < 0) {
+                search(start, middle, !byLatitude);
+                if (split * split < distance) {
+                    search(middle + 1, end, !byLatitude);
+                }
+            } else {
+                search(middle + 1, end, !byLatitude);
+                if (split * split < distance) {
+                    search(start, middle, !byLatitude);
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a search for the time zones of all settlements within some
+     * distance in the k-d tree, which stops as soon as a second one is found
+     */
+    private class ZoneWithin {
+        private final float latitude;
+        private final float longitude;
+        private final float distance;
+        private int zone = -1;
+        private boolean ambiguous;
+
+        private ZoneWithin(float latitude, float longitude, float distance) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.distance = distance;
+        }
+
+        private void search(int start, int end, boolean byLatitude) {
+            if (start >= end || ambiguous) {
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            float dLat = latitude - latitudes.get(middle);
+            float dLon = longitude - longitudes.get(middle);
+            if (dLat * dLat + dLon * dLon <= distance) {
+                int found = zoneIndices.get(middle);
+                if (zone < 0) {
+                    zone = found;
+                } else if (zone != found) {
+                    ambiguous = true;
+                    return;
+                }
+            }
+            float split = byLatitude ? dLat : dLon;
+            if (split < 0 || split * split <= distance) {
+                search(start, middle, !byLatitude);
+            }
+            if (split >= 0 || split * split <= distance) {
+                search(middle + 1, end, !byLatitude);
+            }
+        }
+    }
+
+    /**
+     * Computes the time zone of each raster cell: the cell has the time zone
+     * of the settlement nearest to its centre if all settlements that can be
+     * nearest to any point in the cell have the same one.
+     * 
+     * @return the raster in the format described above, without the
+     *         resolution
+     */
+    private byte[] createRaster(int cellsPerDegree) {
+        int rows = 180 * cellsPerDegree;
+        int columns = 360 * cellsPerDegree;
+        double halfDiagonal = Math.sqrt(0.5) / cellsPerDegree;
+        int[] starts = new int[rows + 1];
+        short[] ends = new short[1024];
+        short[] runs = new short[1024];
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            starts[row] = count;
+            float lat = (float) ((row + 0.5) / cellsPerDegree - 90);
+            for (int column = 0; column < columns; column++) {
+                float lon = (float) ((column + 0.5) / cellsPerDegree - 180);
+                Nearest nearest = new Nearest(lat, lon);
+                nearest.search(0, size, true);
+                double radius = Math.sqrt(nearest.distance) + 2
+                        * halfDiagonal + RASTER_MARGIN;
+                ZoneWithin within = new ZoneWithin(lat, lon,
+                        (float) (radius * radius));
+                within.search(0, size, true);
+                short zone = within.ambiguous ? AMBIGUOUS
+                        : (short) within.zone;
+                if (count > starts[row] && runs[count - 1] == zone) {
+                    ends[count - 1] = (short) (column + 1);
+                } else {
+                    if (count == ends.length) {
+                        ends = Arrays.copyOf(ends, count * 2);
+                        runs = Arrays.copyOf(runs, count * 2);
+                    }
+                    ends[count] = (short) (column + 1);
+                    runs[count] = zone;
+                    count++;
+                }
+            }
+        }
+        starts[rows] = count;
+
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 * starts.length + 4 * count)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(count);
+        for (int start : starts) {
+            out.putInt(start);
+        }
+        for (int i = 0; i < count; i++) {
+            out.putShort(ends[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            out.putShort(runs[i]);
+        }
+        return out.array();
+    }
+
+    /**
+     * Finds the timezones of many waypoints at once. Waypoints that lie in
+     * the same grid cell (about 1 km) as a previously looked up one get the
+     * same result without another search, so that a track usually needs
+     * only a few actual searches. Very many waypoints are split into chunks
+     * that are looked up in parallel.
+     * 
+     * @param latitudes
+     *            of the waypoints
+     * @param longitudes
+     *            of the waypoints
+     * @param result
+     *            receives the timezone for each waypoint
+     */
+    public void find(float[] latitudes, float[] longitudes,
+            DateTimeZone[] result) {
+        find(latitudes, longitudes, result, Runtime.getRuntime()
+                .availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            maximum number of threads to use
+     * 
+     * @see #find(float[], float[], DateTimeZone[])
+     */
+    public void find(final float[] latitudes, final float[] longitudes,
+            final DateTimeZone[] result, int threads) {
+        int count = latitudes.length;
+        int chunks = Math.max(1, Math.min(threads, count / MIN_CHUNK_SIZE));
+        if (chunks == 1) {
+            find(latitudes, longitudes, result, 0, count);
+            return;
+        }
+
+        Thread[] workers = new Thread[chunks - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int start = (int) ((long) count * i / chunks);
+            final int end = (int) ((long) count * (i + 1) / chunks);
+            workers[i] = new Thread("TimezoneFinder") {
+                @Override
+                public void run() {
+                    find(latitudes, longitudes, result, start, end);
+                }
+            };
+            workers[i].start();
+        }
+        find(latitudes, longitudes, result, (int) ((long) count
+                * (chunks - 1) / chunks), count);
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while finding time zones", e);
+        }
+    }
+
+    private void find(float[] latitudes, float[] longitudes,
+            DateTimeZone[] result, int start, int end) {
+        long lastCell = 0;
+        DateTimeZone lastZone = null;
+        boolean hasLast = false;
+        for (int i = start; i < end; i++) {
+            float lat = latitudes[i];
+            float lon = longitudes[i];
+            if (Float.isNaN(lat) || Float.isNaN(lon)) {
+                result[i] = find(lat, lon);
+                continue;
+            }
+            long cell = ((long) Math.floor(lat * CELLS_PER_DEGREE) << 32)
+                    | ((long) Math.floor(lon * CELLS_PER_DEGREE) & 0xFFFFFFFFL);
+            if (!hasLast || cell != lastCell) {
+                lastZone = cachedFind(cell, lat, lon);
+                lastCell = cell;
+                hasLast = true;
+            }
+            result[i] = lastZone;
+        }
+    }
+
+    private DateTimeZone cachedFind(long cell, float lat, float lon) {
+        int slot = ((int) (cell ^ (cell >>> 32)) * 0x9E3779B9) >>> 20
+                & (CACHE_SIZE - 1);
+        CacheEntry entry = cache.get(slot);
+        if (entry != null && entry.cell == cell) {
+            return entry.zone;
+        }
+        DateTimeZone zone = find(lat, lon);
+        cache.set(slot, new CacheEntry(cell, zone));
+        return zone;
+    }
+
+    /**
+     * Writes an index of settlements without a raster
+     * 
+     * @see #writeIndex(List, float[], float[], short[], int, OutputStream)
+     */
+    public static void writeIndex(List<String> zoneIds, float[] latitudes,
+            float[] longitudes, short[] zones, OutputStream out)
+            throws IOException {
+        writeIndex(zoneIds, latitudes, longitudes, zones, 0, out);
+    }
+
+    /**
+     * Writes an index of settlements in the format described above
+     * 
+     * @param zoneIds
+     *            IDs of the time zones
+     * @param zones
+     *            index into zoneIds for each settlement
+     * @param cellsPerDegree
+     *            resolution of the raster, 0 for none
+     */
+    public static void writeIndex(List<String> zoneIds,
+            final float[] latitudes, final float[] longitudes, short[] zones,
+            int cellsPerDegree, OutputStream out) throws IOException {
+        if (cellsPerDegree < 0 || 360 * cellsPerDegree > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported resolution: "
+                    + cellsPerDegree);
+        }
+        Integer[] order = new Integer[latitudes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        arrange(order, 0, order.length, latitudes, longitudes);
+
+        ByteArrayOutputStream zoneTable = new ByteArrayOutputStream();
+        DataOutputStream zoneOut = new DataOutputStream(zoneTable);
+        for (String id : zoneIds) {
+            byte[] bytes = id.getBytes("UTF-8");
+            zoneOut.writeShort(Short.reverseBytes((short) bytes.length));
+            zoneOut.write(bytes);
+        }
+        int headerLength = 12 + zoneTable.size();
+        headerLength += padding(headerLength);
+
+        int pointsLength = headerLength + 4 + 10 * order.length;
+        pointsLength += padding(pointsLength);
+        ByteBuffer data = ByteBuffer.allocate(pointsLength + 4).order(
+                ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putInt(VERSION).putInt(zoneIds.size());
+        data.put(zoneTable.toByteArray());
+        data.position(headerLength);
+        data.putInt(order.length);
+        for (int i : order) {
+            data.putFloat(latitudes[i]);
+        }
+        for (int i : order) {
+            data.putFloat(longitudes[i]);
+        }
+        for (int i : order) {
+            data.putShort(zones[i]);
+        }
+        data.position(pointsLength);
+        data.putInt(0);
+        if (cellsPerDegree == 0) {
+            out.write(data.array());
+        } else {
+            byte[] raster = new TimezoneFinder(ByteBuffer.wrap(data.array()))
+                    .createRaster(cellsPerDegree);
+            data.putInt(pointsLength, cellsPerDegree);
+            out.write(data.array());
+            out.write(raster);
+        }
+        out.flush();
+    }
+
+    /**
+     * Sorts the range of settlements by latitude or longitude and places its
+     * median in the middle, then does the same for both halves with the other
+     * coordinate
+     */
+    private static void arrange(Integer[] order, int start, int end,
+            final float[] keys, final float[] otherKeys) {
+        if (end - start < 2) {
+            return;
+        }
+        Arrays.sort(order, start, end, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(keys[a], keys[b]);
+            }
+        });
+        int middle = (start + end) >>> 1;
+        arrange(order, start, middle, otherKeys, keys);
+        arrange(order, middle + 1, end, otherKeys, keys);
+    }
 }
@@ -0,0 +1,145 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies files by looking only at their first few KB, so that files
+ * which are clearly not GPS logs need not be run through every parser.
+ *
+ * @author Michael Borgwardt
+ */
+public enum TrackFileType {
+    /** NMEA 0183 sentences */
+    NMEA,
+    /** GPS Exchange Format */
+    GPX,
+    /** Google Earth KML */
+    KML,
+    /** could be one of the other formats RouteConverter supports */
+    UNKNOWN,
+    /** definitely not a GPS log (image, video, audio, XMP, empty...) */
+    NO_TRACK;
+
+    /** number of bytes looked at */
+    public static final int SNIFF_SIZE = 4096;
+
+    private static final Pattern NMEA_SENTENCE = Pattern.compile(
+            "(^|[\r\n])\\$[A-Z]{5},");
+
+    private static final byte[][] MEDIA_MAGIC = {
+            { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // JPEG
+            { (byte) 0x89, 'P', 'N', 'G' }, // PNG
+            { 'G', 'I', 'F', '8' }, // GIF
+            { 'I', 'I', '*', 0 }, // TIFF and raw formats (CR2, NEF...)
+            { 'M', 'M', 0, '*' }, // TIFF and raw formats
+            { 'R', 'I', 'F', 'F' }, // AVI, WAV
+            { 'I', 'D', '3' }, // MP3
+            { '%', 'P', 'D', 'F' }, // PDF
+    };
+
+    /**
+     * @return type of the given file, as far as can be determined from its
+     *         start
+     */
+    public static TrackFileType detect(File file) throws IOException {
+        byte[] start = readStart(file);
+        return detect(start, start.length);
+    }
+
+    /**
+     * @return the first {@link #SNIFF_SIZE} bytes of the file, or all of it
+     *         if it is shorter
+     */
+    public static byte[] readStart(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[SNIFF_SIZE];
+            int len = 0;
+            int read;
+            while (len < buf.length
+                    && (read = in.read(buf, len, buf.length - len)) > 0) {
+                len += read;
+            }
+            return Arrays.copyOf(buf, len);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return type of a file starting with the given bytes
+     */
+    public static TrackFileType detect(byte[] start, int len) {
+        if (len == 0) {
+            return NO_TRACK;
+        }
+        for (byte[] magic : MEDIA_MAGIC) {
+            if (startsWith(start, len, 0, magic)) {
+                return NO_TRACK;
+            }
+        }
+        // ISO base media: MP4, MOV, 3GP
+        if (startsWith(start, len, 4, new byte[] { 'f', 't', 'y', 'p' })
+                || startsWith(start, len, 4, new byte[] { 'm', 'o', 'o', 'v' })
+                || startsWith(start, len, 4, new byte[] { 'm', 'd', 'a', 't' })) {
+            return NO_TRACK;
+        }
+
+        String text;
+        try {
+            text = new String(start, 0, len, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("Can't happen", e);
+        }
+        if (NMEA_SENTENCE.matcher(text).find()) {
+            return NMEA;
+        }
+        if (text.contains("<gpx")) {
+            return GPX;
+        }
+        if (text.contains("<kml")) {
+            return KML;
+        }
+        if (text.contains("<x:xmpmeta") || text.contains("<?xpacket")) {
+            return NO_TRACK;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] data, int len, int offset,
+            byte[] magic) {
+        if (len < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
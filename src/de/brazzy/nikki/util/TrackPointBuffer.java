@@ -0,0 +1,88 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Collects the points of a GPS log in primitive arrays
+ *
+ * @author Michael Borgwardt
+ */
+public class TrackPointBuffer implements TrackPointHandler {
+    private double[] latitudes = new double[256];
+    private double[] longitudes = new double[256];
+    private long[] times = new long[256];
+    private int size;
+
+    @Override
+    public void point(double latitude, double longitude, long time) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        times[size] = time;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * @return UTC milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * @return all latitudes, in the format used by {@link TimezoneFinder}
+     */
+    public float[] getLatitudesAsFloat() {
+        return toFloat(latitudes);
+    }
+
+    /**
+     * @return all longitudes, in the format used by {@link TimezoneFinder}
+     */
+    public float[] getLongitudesAsFloat() {
+        return toFloat(longitudes);
+    }
+
+    private float[] toFloat(double[] values) {
+        float[] result = new float[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (float) values[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+package de.brazzy.nikki.util;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Receives the points of a GPS log one at a time from a {@link TrackParser}
+ *
+ * @author Michael Borgwardt
+ */
+public interface TrackPointHandler {
+    /**
+     * @param latitude
+     *            signed, in degrees
+     * @param longitude
+     *            signed, in degrees
+     * @param time
+     *            UTC milliseconds since the epoch
+     */
+    void point(double latitude, double longitude, long time);
+}
@@ -40,7 +40,12 @@ public class ImageRenderer extends AbstractCellEditor implements
 
     public ImageRenderer(Dialogs dialogs, Image[] clipboard,
             ActionListener copyListener) {
-        view = new ImageView(dialogs, clipboard, copyListener);
+        this(dialogs, clipboard, copyListener, new ThumbnailCache());
+    }
+
+    public ImageRenderer(Dialogs dialogs, Image[] clipboard,
+            ActionListener copyListener, ThumbnailCache thumbnails) {
+        view = new ImageView(dialogs, clipboard, copyListener, thumbnails);
     }
 
     @Override
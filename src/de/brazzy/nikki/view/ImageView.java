@@ -23,6 +23,7 @@ import java.awt.Color;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
@@ -62,6 +63,10 @@ public class ImageView extends JPanel {
 
     private static final DateTimeFormatter TIMESTAMP_FORMAT = ISODateTimeFormat
             .dateTimeNoMillis();
+
+    /** Shown while the thumbnail is being read */
+    private static final ImageIcon PLACEHOLDER = new ImageIcon(
+            new BufferedImage(180, 135, BufferedImage.TYPE_INT_ARGB));
     private JTextArea textArea = new JTextArea(2, 40);
     private JLabel thumbnail = new JLabel();
     private JTextField title = new JTextField();
@@ -83,6 +88,7 @@ public class ImageView extends JPanel {
     private Dialogs dialogs;
     private ActionListener copyListener;
     private boolean empty = true;
+    private ThumbnailCache thumbnails;
 
     /**
      * @param dialogs
@@ -90,7 +96,19 @@ public class ImageView extends JPanel {
      */
     public ImageView(final Dialogs dialogs, Image[] clipboard,
             ActionListener copyListener) {
+        this(dialogs, clipboard, copyListener, new ThumbnailCache());
+    }
+
+    /**
+     * @param dialogs
+     *            used for offset finder button
+     * @param thumbnails
+     *            supplies the decoded thumbnails, can be shared between views
+     */
+    public ImageView(final Dialogs dialogs, Image[] clipboard,
+            ActionListener copyListener, ThumbnailCache thumbnails) {
         super(new BorderLayout());
+        this.thumbnails = thumbnails;
         this.clipboard = clipboard;
         this.dialogs = dialogs;
         this.copyListener = copyListener;
@@ -298,7 +316,8 @@ public class ImageView extends JPanel {
         }
         paste.setEnabled(clipboard[0] != null);
         setGpsData(value);
-        thumbnail.setIcon(new ImageIcon(value.getThumbnail()));
+        thumbnail.setIcon(value.getThumbnailPending() ? PLACEHOLDER
+                : thumbnails.get(value));
         textArea.setText(value.getDescription());
         export.setSelected(value.getExport());
         if (value.getWaypoint() == null) {
@@ -44,6 +44,7 @@ public class NikkiFrame{
     def deleteButton
     def scanButton
     def saveButton
+    def embedButton
     def exportButton
     def exportAllButton
     def exportNoneButton
@@ -84,6 +85,9 @@ public class NikkiFrame{
                             result.saveButton = button(text:Texts.Main.SAVE_BUTTON, enabled:false, 
                                     toolTipText:Texts.Main.SAVE_TOOLTIP,
                                     icon:new ImageIcon(NikkiFrame.class.getResource("/icons/disk.png")))
+                            result.embedButton = button(text:Texts.Main.EMBED_BUTTON, enabled:false, visible:false,
+                                    toolTipText:Texts.Main.EMBED_TOOLTIP,
+                                    icon:new ImageIcon(NikkiFrame.class.getResource("/icons/disk.png")))
                         }
                     }
                     panel(){
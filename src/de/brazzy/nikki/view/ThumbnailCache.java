@@ -0,0 +1,145 @@
+package de.brazzy.nikki.view;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.swing.ImageIcon;
+
+import de.brazzy.nikki.model.Image;
+
+/**
+ * Keeps decoded thumbnails of recently displayed {@link Image}s, so that the
+ * JPEG data need not be decoded again each time a table cell is painted.
+ * Entries are keyed on Image identity and become invalid when the Image's
+ * thumbnail byte array is replaced. The least recently used entries are
+ * evicted when the decoded pixel data exceeds the configured size.
+ *
+ * @author Michael Borgwardt
+ */
+public class ThumbnailCache {
+    /** Default limit for decoded pixel data, in bytes */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static class Entry {
+        byte[] source;
+        ImageIcon icon;
+        long size;
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Image, Entry> entries = new LinkedHashMap<Image, Entry>(
+            16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public ThumbnailCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            limit for the decoded pixel data kept
+     */
+    public ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the decoded thumbnail of the image, null if it has none
+     */
+    public synchronized ImageIcon get(Image image) {
+        byte[] data = image.getThumbnail();
+        Entry entry = entries.get(image);
+        if (entry != null && entry.source == data) {
+            hits++;
+            return entry.icon;
+        }
+        misses++;
+        if (entry != null) {
+            remove(image);
+        }
+        if (data == null) {
+            return null;
+        }
+
+        entry = new Entry();
+        entry.source = data;
+        entry.icon = new ImageIcon(data);
+        entry.size = Math.max(data.length, 4L * entry.icon.getIconWidth()
+                * entry.icon.getIconHeight());
+        entries.put(image, entry);
+        bytes += entry.size;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && entries.size() > 1) {
+            bytes -= it.next().size;
+            it.remove();
+        }
+        return entry.icon;
+    }
+
+    /**
+     * Removes the entry for the given image, if present
+     */
+    public synchronized void remove(Image image) {
+        Entry entry = entries.remove(image);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return number of entries currently kept
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return size of the decoded pixel data currently kept, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of requests answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of requests that required decoding
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
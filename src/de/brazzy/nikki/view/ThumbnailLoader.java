@@ -0,0 +1,223 @@
+package de.brazzy.nikki.view;
+
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.model.ImageReader;
+
+/**
+ * Reads pending thumbnails (see {@link Image#getThumbnailPending()}) on a
+ * background thread, for the rows currently visible in an image table plus
+ * a prefetch margin. Each new request replaces the outstanding ones, so
+ * that rows scrolled past quickly are not read at all. Thumbnails are set
+ * on the event dispatch thread, followed by a repaint of the table.
+ * Requests are made when the table is scrolled or its data changes, not
+ * while it is painted, since each loaded thumbnail causes another repaint.
+ *
+ * @author Michael Borgwardt
+ */
+public class ThumbnailLoader {
+    /** Number of rows above and below the visible ones to read in advance */
+    public static final int PREFETCH = 10;
+
+    private final ExecutorService executor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ThumbnailLoader");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+    private final LinkedList<Image> queue = new LinkedList<Image>();
+    private JComponent target;
+    private Image current;
+    private boolean running;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Image image;
+                JComponent repaint;
+                synchronized (ThumbnailLoader.this) {
+                    if (queue.isEmpty()) {
+                        current = null;
+                        running = false;
+                        return;
+                    }
+                    image = queue.removeFirst();
+                    current = image;
+                    repaint = target;
+                }
+                load(image, repaint);
+            }
+        }
+    };
+
+    /**
+     * Calls {@link #requestVisible(JTable)} whenever the visible part of the
+     * table changes: when it is scrolled or resized, when its model is
+     * replaced, and when the model's data changes. Must be called on the
+     * event dispatch thread after the table has been put in a scroll pane.
+     */
+    public void watch(final JTable table) {
+        final Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                requestVisible(table);
+            }
+        };
+        // run after the table itself has processed the change
+        final TableModelListener modelListener = new TableModelListener() {
+            @Override
+            public void tableChanged(TableModelEvent e) {
+                SwingUtilities.invokeLater(update);
+            }
+        };
+        table.getModel().addTableModelListener(modelListener);
+        table.addPropertyChangeListener("model", new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent e) {
+                ((TableModel) e.getOldValue())
+                        .removeTableModelListener(modelListener);
+                ((TableModel) e.getNewValue())
+                        .addTableModelListener(modelListener);
+                SwingUtilities.invokeLater(update);
+            }
+        });
+        if (table.getParent() instanceof JViewport) {
+            ((JViewport) table.getParent())
+                    .addChangeListener(new ChangeListener() {
+                        @Override
+                        public void stateChanged(ChangeEvent e) {
+                            update.run();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Requests the pending thumbnails of the visible rows of the table, plus
+     * {@link #PREFETCH} rows on either side. Must be called on the event
+     * dispatch thread.
+     */
+    public void requestVisible(JTable table) {
+        int rows = table.getRowCount();
+        if (rows == 0) {
+            return;
+        }
+        Rectangle visible = table.getVisibleRect();
+        if (visible.isEmpty()) {
+            return;
+        }
+        int first = table.rowAtPoint(visible.getLocation());
+        int last = table.rowAtPoint(new Point(visible.x, visible.y
+                + visible.height - 1));
+        if (first < 0) {
+            first = 0;
+        }
+        if (last < 0) {
+            last = rows - 1;
+        }
+        first = Math.max(0, first - PREFETCH);
+        last = Math.min(rows - 1, last + PREFETCH);
+
+        List<Image> wanted = new ArrayList<Image>(last - first + 1);
+        for (int row = first; row <= last; row++) {
+            Object value = table.getValueAt(row, 0);
+            if (value instanceof Image
+                    && ((Image) value).getThumbnailPending()) {
+                wanted.add((Image) value);
+            }
+        }
+        request(wanted, table);
+    }
+
+    /**
+     * Replaces all outstanding requests with the given images
+     *
+     * @param repaint
+     *            repainted after each thumbnail has been set
+     */
+    public synchronized void request(List<Image> images, JComponent repaint) {
+        queue.clear();
+        for (Image image : images) {
+            if (image != current) {
+                queue.add(image);
+            }
+        }
+        target = repaint;
+        if (!running && !queue.isEmpty()) {
+            running = true;
+            executor.execute(drain);
+        }
+    }
+
+    private void load(final Image image, final JComponent repaint) {
+        if (image.getDay() == null) {
+            return;
+        }
+        File file = new File(image.getDay().getDirectory().getPath(), image
+                .getFileName());
+        ImageReader reader = new ImageReader(file, null);
+        final byte[] thumbnail = reader.readThumbnail();
+        final boolean isNew = Boolean.TRUE.equals(reader.isThumbnailNew());
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (image.getThumbnailPending()) {
+                    image.setThumbnail(thumbnail);
+                    image.setThumbnailPending(false);
+                    if (isNew) {
+                        image.setModified(true);
+                    }
+                }
+                if (repaint != null) {
+                    repaint.repaint();
+                }
+            }
+        });
+    }
+}
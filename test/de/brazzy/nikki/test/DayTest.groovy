@@ -22,12 +22,14 @@ import de.brazzy.nikki.model.GeoCoordinate;
 import de.brazzy.nikki.model.Waypoint
 import de.brazzy.nikki.model.Day
 import de.brazzy.nikki.model.Image
+import de.brazzy.nikki.model.ImageExporter
 import de.brazzy.nikki.model.ImageSortField
 import de.brazzy.nikki.util.Texts;
 
 import java.util.zip.ZipOutputStream
 import java.util.zip.ZipInputStream
 import java.util.zip.ZipEntry
+import de.micromata.opengis.kml.v_2_2_0.KmlFactory
 import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
@@ -328,5 +330,36 @@ class DayTest extends AbstractNikkiTest{
         day = new Day(directory: tmpDir, date: DAY1)
         assertEquals(new TreeSet(), day.prepareWaypoints())
     }
+
+    public void testImageExporter() {
+        addWaypointFile(DAY1, "dummy")
+        def images = []
+        3.times{
+            String name = "img${it}.jpg"
+            copyFile(IMAGE1)
+            new File(tmpDir.path, IMAGE1).renameTo(new File(tmpDir.path, name))
+            images << addImage(DAY1, name, it)
+        }
+        images[1].export = false
+        def doc = KmlFactory.createKml().createAndSetDocument()
+        def baos = new ByteArrayOutputStream()
+        def out = new ZipOutputStream(baos)
+        out.method = ZipOutputStream.STORED
+
+        new ImageExporter(2, 1).export(images, doc, out, null)
+        out.close()
+        assertEquals(["000 testTitle", "002 testTitle"], doc.feature*.name)
+        def input = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))
+        def names = []
+        for(ZipEntry entry = input.nextEntry; entry; entry = input.nextEntry) {
+            names << entry.name
+        }
+        assertEquals(["images/img0.jpg", "thumbs/img0.jpg", "images/img2.jpg", "thumbs/img2.jpg"], names)
+
+        new File(tmpDir.path, "img2.jpg").delete()
+        shouldFail(IOException){
+            new ImageExporter(2, 2).export(images, doc, new ZipOutputStream(new ByteArrayOutputStream()), null)
+        }
+    }
 }
 
@@ -19,14 +19,29 @@ package de.brazzy.nikki.test;
 
 import static org.junit.Assert.*;
 import de.brazzy.nikki.DirectoryScanner;
+import de.brazzy.nikki.ScanIndex;
+import de.brazzy.nikki.model.Directory;
 import de.brazzy.nikki.model.Day;
 import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.model.ImageReader;
+import de.brazzy.nikki.model.MetadataSidecar;
+import de.brazzy.nikki.model.SaveEngine;
 import de.brazzy.nikki.model.Waypoint;
 import de.brazzy.nikki.model.WaypointFile;
+import de.brazzy.nikki.util.ChangePublisher;
 import de.brazzy.nikki.util.ParserFactory;
+import de.brazzy.nikki.util.TimezoneFinder;
 import de.brazzy.nikki.util.TimezoneMissingException;
+import de.brazzy.nikki.view.ThumbnailLoader;
 
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataListener;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -197,6 +212,216 @@ class DirectoryScannerTest extends AbstractNikkiTest {
         assertEquals(day1.waypoints as Set, file2.waypoints as Set)
     }
     
+    public void testParallelRead() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        def broken = new File(tmpDir.path, "BROKEN.JPG")
+        broken.text = "not a JPEG"
+        broken.deleteOnExit()
+        
+        scanner.threads = 3
+        scanner.zone = ZONE
+        scanner.scan(tmpDir, null)
+        
+        assertEquals(3, tmpDir.images.size())
+        assertTrue(scanner.exceptions.isEmpty())
+        assertSame(ImageReader.errorIcon, tmpDir.images["BROKEN.JPG"].thumbnail)
+        assertEquals(DAY1, tmpDir.images[IMAGE1].day.date)
+        assertEquals(DAY2, tmpDir.images[IMAGE2].day.date)
+    }
+    
+    public void testLazyThumbnails() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        scanner.zone = ZONE
+        scanner.lazyThumbnails = true
+        scanner.scan(tmpDir, null)
+        
+        def images = [tmpDir.images[IMAGE1], tmpDir.images[IMAGE2]]
+        images.each{
+            assertTrue(it.thumbnailPending)
+            assertNull(it.thumbnail)
+            assertFalse(it.modified)
+        }
+        
+        def loader = new ThumbnailLoader()
+        SwingUtilities.invokeAndWait{ loader.request(images, null) }
+        for(int i=0; i<100 && images.any{ it.thumbnailPending }; i++){
+            Thread.sleep(50)
+            SwingUtilities.invokeAndWait{}
+        }
+        def reader = new ImageReader(new File(tmpDir.path, IMAGE1), ZONE)
+        assertEquals(reader.thumbnail as List, images[0].thumbnail as List)
+        assertNotNull(images[1].thumbnail)
+        assertFalse(images[1].thumbnailPending)
+    }
+    
+    public void testThumbnailsOnScroll() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        scanner.zone = ZONE
+        scanner.lazyThumbnails = true
+        scanner.scan(tmpDir, null)
+        
+        def table = new JTable(tmpDir[0])
+        table.rowHeight = 180
+        def scrollPane = new JScrollPane(table)
+        scrollPane.setSize(200, 200)
+        scrollPane.doLayout()
+        scrollPane.viewport.doLayout()
+        SwingUtilities.invokeAndWait{ new ThumbnailLoader().watch(table) }
+        Image image = tmpDir[1].images[0]
+        assertTrue(image.thumbnailPending)
+        
+        SwingUtilities.invokeAndWait{ table.model = tmpDir[1] }
+        for(int i=0; i<100 && image.thumbnailPending; i++){
+            Thread.sleep(50)
+            SwingUtilities.invokeAndWait{}
+        }
+        assertFalse(image.thumbnailPending)
+        assertNotNull(image.thumbnail)
+    }
+    
+    public void testEventsOnEdt() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        copyFile(WAYPOINTS1)
+        scanner.zone = ZONE
+        scanner.finder = new TimezoneFinder()
+        def events = []
+        def record = { events << SwingUtilities.isEventDispatchThread() }
+        tmpDir.addListDataListener([intervalAdded: record, intervalRemoved: record,
+            contentsChanged: record] as ListDataListener)
+        
+        scanner.scan(tmpDir, null)
+        assertEquals(2, tmpDir.size)
+        assertTrue(events.size() >= 1)
+        assertTrue(events.every{ it })
+    }
+    
+    public void testPublisherFailure() {
+        def publisher = new ChangePublisher()
+        def applied = []
+        def exception
+        // on the EDT, so that the changes are not applied before flush()
+        SwingUtilities.invokeAndWait{
+            publisher.publish({ applied << 1 } as Runnable)
+            publisher.publish({ throw new IllegalStateException("first") } as Runnable)
+            publisher.publish({ throw new IllegalArgumentException("second") } as Runnable)
+            publisher.publish({ applied << 2 } as Runnable)
+            try {
+                publisher.flush()
+            }
+            catch(IllegalStateException e) {
+                exception = e
+            }
+        }
+        assertEquals("first", exception?.message)
+        assertEquals([1, 2], applied)
+    }
+    
+    public void testFinderFuture() {
+        def finder = new MockTimezoneFinder()
+        finder.addCall(Float.NaN,Float.NaN, DateTimeZone.UTC)
+        finder.addCall(Float.NaN,Float.NaN, DateTimeZone.UTC)
+        def task = new FutureTask({ finder } as Callable)
+        scanner.finder = null
+        scanner.finderFuture = task
+        copyFile(WAYPOINTS1)
+        
+        Thread.start{ task.run() }
+        scanner.scan(tmpDir, null)
+        finder.finished()
+        assertSame(finder, scanner.finder)
+        assertEquals(1, tmpDir.waypointFiles.size())
+        
+        task = new FutureTask({ throw new IOException() } as Callable)
+        task.run()
+        scanner = new DirectoryScanner(finderFuture: task)
+        shouldFail(IllegalStateException){
+            scanner.finder
+        }
+    }
+    
+    public void testScanIndex() {
+        File indexDir = File.createTempFile("nikkiindex",null)
+        indexDir.delete()
+        copyFile(IMAGE1)
+        scanner.indexDir = indexDir
+        scanner.scan(tmpDir, null)
+        File indexFile = ScanIndex.indexFileFor(indexDir, tmpDir.path)
+        assertTrue(indexFile.exists())
+        assertEquals(1, tmpDir.path.list().length)
+        
+        // same size and mtime, but unparseable: data must come from index
+        File imageFile = new File(tmpDir.path, IMAGE1)
+        long mtime = imageFile.lastModified()
+        long length = imageFile.length()
+        imageFile.withOutputStream{ it.write(new byte[length]) }
+        imageFile.setLastModified(mtime)
+        
+        Directory dir2 = new Directory(path: tmpDir.path)
+        new DirectoryScanner(indexDir: indexDir).scan(dir2, null)
+        Image image = dir2.images[IMAGE1]
+        assertEquals("Überschrift", image.title)
+        assertEquals(TZ_DARWIN, image.time.zone)
+        assertEquals(tmpDir.images[IMAGE1].time, image.time)
+        assertEquals(tmpDir.images[IMAGE1].thumbnail as List, image.thumbnail as List)
+        assertEquals(DAY1, dir2[0].date)
+        assertFalse(image.modified)
+        
+        // changed mtime invalidates entry
+        imageFile.setLastModified(mtime - 10000)
+        Directory dir3 = new Directory(path: tmpDir.path)
+        new DirectoryScanner(indexDir: indexDir, zone: ZONE).scan(dir3, null)
+        assertSame(ImageReader.errorIcon, dir3.images[IMAGE1].thumbnail)
+        
+        indexFile.delete()
+        indexDir.delete()
+    }
+    
+    public void testSidecar() {
+        copyFile(IMAGE1)
+        File imageFile = new File(tmpDir.path, IMAGE1)
+        byte[] original = imageFile.readBytes()
+        scanner.scan(tmpDir, null)
+        Image image = tmpDir.images[IMAGE1]
+        image.title = "sidecar title"
+        image.export = false
+        
+        def engine = new SaveEngine(2, 1, true)
+        assertEquals([:], tmpDir.save(null, engine))
+        assertFalse(image.modified)
+        assertTrue(Arrays.equals(original, imageFile.readBytes()))
+        File sidecarFile = MetadataSidecar.fileFor(tmpDir.path)
+        assertTrue(sidecarFile.exists())
+        long length = sidecarFile.length()
+        image.description = "sidecar description"
+        tmpDir.save(null, engine)
+        assertTrue(sidecarFile.length() > length)
+        
+        Directory dir2 = new Directory(path: tmpDir.path)
+        scanner.scan(dir2, null)
+        assertEquals(1, dir2.images.size())
+        assertTrue(dir2.waypointFiles.isEmpty())
+        Image image2 = dir2.images[IMAGE1]
+        assertEquals("sidecar title", image2.title)
+        assertEquals("sidecar description", image2.description)
+        assertFalse(image2.export)
+        assertEquals(image.time, image2.time)
+        assertFalse(image2.modified)
+        
+        // data of a file that is not in the directory must survive embedding
+        new MetadataSidecar(tmpDir.path).append([constructImage(DAY1, "missing.jpg")])
+        def result = engine.embed([dir2], null)
+        assertEquals([:], result[dir2])
+        assertEquals(["missing.jpg"], new MetadataSidecar(tmpDir.path).fileNames)
+        def reader = new ImageReader(imageFile, null)
+        assertEquals("sidecar title", reader.title)
+        assertEquals("sidecar description", reader.description)
+        assertFalse(reader.export)
+    }
+    
     public void testEmptyDir() {
         tmpDir.path.mkdirs()
         scanner.scan(tmpDir, null)
@@ -22,17 +22,24 @@ import java.awt.Rectangle;
 import groovy.mock.interceptor.MockFor;
 
 
+import javax.swing.JList;
+import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
+import javax.swing.event.TableModelListener;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
+import org.joda.time.Seconds;
 
 import de.brazzy.nikki.model.Cardinal;
 import de.brazzy.nikki.model.Directory
 import de.brazzy.nikki.model.Day
 import de.brazzy.nikki.model.GeoCoordinate;
 import de.brazzy.nikki.model.Image
+import de.brazzy.nikki.model.ImageReader;
+import de.brazzy.nikki.model.ListDataModel;
+import de.brazzy.nikki.model.SaveEngine;
 import de.brazzy.nikki.model.Waypoint;
 import de.brazzy.nikki.model.WaypointFile
 import de.brazzy.nikki.util.TimezoneFinder;
@@ -184,6 +191,103 @@ public class DirectoryTest extends AbstractNikkiTest {
         mock.verify(mockListener)
     }
     
+    public void testAddAll() {
+        def mock = new MockFor(ListDataListener)
+        mock.demand.intervalAdded {
+            assert it.index0 == 0 && it.index1==1
+        }
+        mock.demand.intervalAdded {
+            assert it.index0 == 0 && it.index1==0
+        }
+        def mockListener = mock.proxyDelegateInstance()
+        tmpDir.addListDataListener(mockListener)
+        
+        Day day1 = new Day(date:DAY1)
+        Day day2 = new Day(date:DAY2)
+        Day dayX = new Day()
+        tmpDir.addAll([day2, day1])
+        assertSame(day1, tmpDir[0])
+        assertSame(day2, tmpDir[1])
+        tmpDir.addAll([dayX])
+        assertSame(dayX, tmpDir[0])
+        assertSame(day1, tmpDir[1])
+        assertSame(day2, tmpDir[2])
+        assertSame(dayX, tmpDir.getDay(null))
+        assertSame(day2, tmpDir.getDay(DAY2))
+        
+        try {
+            tmpDir.addAll([new Day(date:new LocalDate(2000,1,1)), new Day(date:DAY1)])
+            fail("added already present day")
+        }
+        catch(IllegalArgumentException e) {
+            assert e.message.contains("Already")
+        }
+        assert 3 == tmpDir.size
+        mock.verify(mockListener)
+        tmpDir.removeListDataListener(mockListener)
+        
+        tmpDir.remove(day1)
+        assertNull(tmpDir.getDay(DAY1))
+        assertSame(day2, tmpDir[1])
+    }
+    
+    public void testAddAllRuns() {
+        def model = new ListDataModel<Integer>()
+        model.addAll([10, 20, 30])
+        def events = []
+        def record = { e -> events << [e.type, e.index0, e.index1] }
+        model.addListDataListener([intervalAdded: record, intervalRemoved: record,
+            contentsChanged: record] as ListDataListener)
+        
+        model.addAll([35, 5, 15, 16, 40])
+        assertEquals([5, 10, 15, 16, 20, 30, 35, 40], model.asList())
+        def added = ListDataEvent.INTERVAL_ADDED
+        assertEquals([[added, 0, 0], [added, 2, 3], [added, 6, 7]], events)
+        
+        def list = new JList(model)
+        list.selectedIndex = 2
+        model.addAll([1, 2])
+        assertEquals(15, list.selectedValue)
+        model.removeAll([1, 10])
+        assertEquals(15, list.selectedValue)
+    }
+    
+    public void testRemoveAll() {
+        def model = new ListDataModel<Integer>()
+        model.addAll([10, 20, 30, 40, 50, 60])
+        def events = []
+        def record = { e -> events << [e.type, e.index0, e.index1, model.size] }
+        model.addListDataListener([intervalAdded: record, intervalRemoved: record,
+            contentsChanged: record] as ListDataListener)
+        
+        assertEquals(4, model.removeAll([10, 30, 40, 60, 70]))
+        assertEquals([20, 50], model.asList())
+        def removed = ListDataEvent.INTERVAL_REMOVED
+        assertEquals([[removed, 5, 5, 5], [removed, 2, 3, 3], [removed, 0, 0, 2]], events)
+        assertEquals(0, model.removeAll([70]))
+        assertEquals(3, events.size())
+    }
+    
+    public void testAddImages() {
+        def images = (0..9).collect{
+            new Image(fileName:"IMG${it}.JPG", time:TIME_UTC_20H.plusHours(it*3))
+        }
+        images << new Image(fileName:"NOTIME.JPG")
+        tmpDir.addImages(images.reverse())
+        
+        assertEquals(11, tmpDir.images.size())
+        assertEquals(3, tmpDir.size)
+        assertNull(tmpDir[0].date)
+        assertEquals([new LocalDate(2010,1,10), new LocalDate(2010,1,11)], [tmpDir[1].date, tmpDir[2].date])
+        Day day = tmpDir.getDay(new LocalDate(2010,1,11))
+        assertEquals(8, day.images.size)
+        assertEquals(images[2..9], day.images.asList())
+        images.each{
+            assertFalse(it.modified)
+            assertSame(it, it.day.images[it.day.images.indexOf(it)])
+        }
+    }
+    
     public void testIsModified() {
         copyFile(IMAGE1)
         Image image = addImage(DAY1, IMAGE1)
@@ -196,6 +300,65 @@ public class DirectoryTest extends AbstractNikkiTest {
         assertFalse(tmpDir.modified)
     }
     
+    public void testModifiedImages() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        Image image1 = addImage(DAY1, IMAGE1)
+        Image image2 = addImage(DAY2, IMAGE2)
+        image1.modified = false
+        image2.modified = false
+        assertEquals([], tmpDir.modifiedImages)
+        
+        image2.title = "changed"
+        assertEquals([image2], tmpDir.modifiedImages)
+        image1.geotag(new TreeSet([WP_EUROPE]))
+        assertEquals([image2, image1], tmpDir.modifiedImages)
+        
+        image1.modified = false
+        image2.pasteTime(image2.time.plusDays(1))
+        assertEquals([image2], tmpDir.modifiedImages)
+        tmpDir.removeImage(image2)
+        assertFalse(tmpDir.modified)
+        
+        def engine = new SaveEngine()
+        image1.modified = true
+        assertTrue(tmpDir.modified)
+        assertEquals([:], tmpDir.save(null, engine))
+        assertFalse(tmpDir.modified)
+        assertEquals(0, engine.skippedWrites)
+        
+        image1.modified = true
+        assertEquals([:], tmpDir.save(null, engine))
+        assertEquals(1, engine.skippedWrites)
+    }
+    
+    public void testSaveEngine() {
+        copyFile(IMAGE1)
+        copyFile(IMAGE2)
+        Image image1 = addImage(DAY1, IMAGE1)
+        Image image2 = addImage(DAY2, IMAGE2)
+        Image missing = new Image(fileName: "missing.jpg", time: image2.time, modified: true)
+        tmpDir.addImage(missing)
+        image1.description = "changed"
+        image2.modified = false
+        
+        def result = new SaveEngine(2, 1).save([tmpDir], null)
+        assertEquals([tmpDir], result.keySet().asList())
+        assertEquals(["missing.jpg"], result[tmpDir].keySet().asList())
+        assertFalse(image1.modified)
+        assertTrue(missing.modified)
+        assertEquals("changed", new ImageReader(new File(tmpDir.path, IMAGE1), null).description)
+    }
+    
+    public void testDiskOf() {
+        File data = new File("/data").absoluteFile
+        File dir = new File(data, "photos/2010")
+        def mounts = [new File("/").absolutePath, data.path, data.path[0..-2],
+            new File(data, "photos/2").path]
+        assertEquals(data.path, SaveEngine.diskOf(dir, mounts))
+        assertEquals(new File("/").absolutePath, SaveEngine.diskOf(dir, []))
+    }
+    
     def TIME_UTC_20H = new DateTime(2010,1,10,20,0,0,0,DateTimeZone.UTC)
     def WP_AUSTRALIA = new Waypoint(timestamp: TIME_UTC_20H.withZone(TZ_BRISBANE),
     latitude: new GeoCoordinate(direction: Cardinal.SOUTH, magnitude: 10),
@@ -249,6 +412,52 @@ public class DirectoryTest extends AbstractNikkiTest {
         tmpDir.geotag()
         assertSame(WP_AUSTRALIA, imageAustralia.waypoint)
         assertEquals(new LocalDate(2010,1,11), imageAustralia.day.date)
+        assertEquals(0, tmpDir.getDay(new LocalDate(2010,1,10)).images.size())
+        assertTrue(imageAustralia.modified)
+    }
+    
+    public void testGeotagRegroup(){
+        def imageAustralia = new Image(fileName:IMAGE1, time: TIME_UTC_20H)
+        def imageEurope = new Image(fileName:IMAGE2, time:TIME_UTC_20H.plusMinutes(2))
+        tmpDir.addImages([imageAustralia, imageEurope])
+        imageAustralia.modified = false
+        Day europe = imageAustralia.day
+        assertSame(europe, imageEurope.day)
+        
+        tmpDir.addWaypoint(WP_EUROPE)
+        tmpDir.addWaypoint(WP_AUSTRALIA)
+        def events = 0
+        europe.addTableModelListener({ events++ } as TableModelListener)
+        tmpDir.geotag()
+        
+        assertEquals(2, tmpDir.size)
+        assertSame(europe, imageEurope.day)
+        assertEquals([imageEurope], europe.images.asList())
+        assertEquals([imageAustralia], imageAustralia.day.images.asList())
+        assertEquals(1, events)
+        assertTrue(imageAustralia.modified)
+        assertEquals(2, tmpDir.modifiedImages.size())
+        
+        tmpDir.geotag()
+        assertEquals(1, events)
+    }
+    
+    public void testGeotagSameDay(){
+        def image = new Image(fileName:IMAGE2, time:TIME_UTC_20H.plusMinutes(2))
+        tmpDir.addWaypoint(WP_EUROPE)
+        tmpDir.addImages([image])
+        Day europe = image.day
+        assertSame(WP_EUROPE, image.waypoint)
+        
+        def closer = new Waypoint(timestamp: TIME_UTC_20H.plusMinutes(3).withZone(TZ_BERLIN),
+                latitude: WP_EUROPE.latitude, longitude: WP_EUROPE.longitude)
+        tmpDir.addWaypoint(closer)
+        def events = 0
+        europe.addTableModelListener({ events++ } as TableModelListener)
+        tmpDir.geotag(Seconds.seconds(60))
+        
+        assertSame(europe, image.day)
+        assertSame(closer, image.waypoint)
+        assertEquals(1, events)
     }
 }
-
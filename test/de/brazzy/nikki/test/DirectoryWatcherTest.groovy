@@ -0,0 +1,194 @@
+package de.brazzy.nikki.test;
+/*   
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.brazzy.nikki.DirectoryScanner;
+import de.brazzy.nikki.DirectoryWatcher;
+import de.brazzy.nikki.model.GeoCoordinate;
+import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.model.ImageReader;
+import de.brazzy.nikki.model.Waypoint;
+import de.brazzy.nikki.util.ParserFactory;
+
+import javax.swing.event.TableModelListener;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * @author Michael Borgwardt
+ *
+ */
+class DirectoryWatcherTest extends AbstractNikkiTest {
+    DirectoryScanner scanner = new DirectoryScanner(
+    finder:new MockTimezoneFinder(),
+    parserFactory:new ParserFactory())
+    
+    DirectoryWatcher watcher
+    
+    protected void setUp() {
+        super.setUp()
+        ensureTmpDir()
+        watcher = new DirectoryWatcher(dir: tmpDir, scanner: scanner)
+        watcher.poll()
+    }
+    
+    public void testAddRemove() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        assertEquals(0, tmpDir.images.size())
+        
+        watcher.poll()
+        assertEquals(1, tmpDir.images.size())
+        assertEquals(1, tmpDir.size())
+        assertEquals(DAY1, tmpDir[0].date)
+        
+        scanner.finder.addCall(Float.NaN,Float.NaN, DateTimeZone.UTC)
+        scanner.finder.addCall(Float.NaN,Float.NaN, DateTimeZone.UTC)
+        copyFile(WAYPOINTS1)
+        watcher.poll()
+        watcher.poll()
+        scanner.finder.finished()
+        assertEquals(1, tmpDir.waypointFiles.size())
+        assertEquals(2, tmpDir[0].waypoints.size())
+        
+        assertTrue(new File(tmpDir.path, IMAGE1).delete())
+        watcher.poll()
+        assertEquals(1, tmpDir.images.size())
+        watcher.poll()
+        assertEquals(0, tmpDir.images.size())
+        assertEquals(0, tmpDir[0].images.size())
+        
+        assertTrue(new File(tmpDir.path, WAYPOINTS1).delete())
+        watcher.poll()
+        watcher.poll()
+        assertEquals(0, tmpDir.waypointFiles.size())
+        assertEquals(0, tmpDir.size())
+    }
+    
+    public void testModified() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        watcher.poll()
+        Image image = tmpDir.images[IMAGE1]
+        
+        File file = new File(tmpDir.path, IMAGE1)
+        file.setLastModified(file.lastModified() - 10000)
+        watcher.poll()
+        watcher.poll()
+        assertSame(image, tmpDir.images[IMAGE1])
+        
+        image.title = "changed"
+        file.setLastModified(file.lastModified() - 10000)
+        watcher.poll()
+        watcher.poll()
+        assertSame(image, tmpDir.images[IMAGE1])
+        assertEquals("changed", image.title)
+    }
+    
+    public void testGeotagged() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        watcher.poll()
+        Image image = tmpDir.images[IMAGE1]
+        
+        File file = new File(tmpDir.path, IMAGE1)
+        Image other = new ImageReader(file, null).createImage()
+        other.waypoint = new Waypoint(timestamp: other.time.plusMinutes(1),
+                latitude: GeoCoordinate.fromValue(10.0, true),
+                longitude: GeoCoordinate.fromValue(20.0, false))
+        other.modified = true
+        other.save(tmpDir.path)
+        file.setLastModified(file.lastModified() - 10000)
+        watcher.poll()
+        watcher.poll()
+        assertNotSame(image, tmpDir.images[IMAGE1])
+        assertEquals(10.0, tmpDir.images[IMAGE1].waypoint.latitude.value, 1e-5)
+    }
+    
+    public void testReplaced() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        watcher.poll()
+        Image image = tmpDir.images[IMAGE1]
+        
+        File file = new File(tmpDir.path, IMAGE1)
+        def data = file.readBytes()
+        assertTrue(file.delete())
+        watcher.poll()
+        file.withOutputStream{ it << data }
+        watcher.poll()
+        watcher.poll()
+        assertSame(image, tmpDir.images[IMAGE1])
+    }
+    
+    public void testSaving() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        watcher.poll()
+        
+        tmpDir.beginSave()
+        assertTrue(new File(tmpDir.path, IMAGE1).delete())
+        watcher.poll()
+        watcher.poll()
+        assertEquals(1, tmpDir.images.size())
+        
+        tmpDir.endSave()
+        watcher.poll()
+        watcher.poll()
+        assertEquals(0, tmpDir.images.size())
+    }
+    
+    public void testTempFiles() {
+        copyFile(WAYPOINTS1)
+        assertTrue(new File(tmpDir.path, WAYPOINTS1).renameTo(
+                new File(tmpDir.path, "nikki1234tmp")))
+        new File(tmpDir.path, "nikki1234tmp").deleteOnExit()
+        watcher.poll()
+        watcher.poll()
+        assertEquals(0, tmpDir.waypointFiles.size())
+        assertEquals(0, scanner.exceptions.size())
+    }
+    
+    public void testTableEvents() {
+        copyFile(IMAGE1)
+        watcher.poll()
+        watcher.poll()
+        def day = tmpDir[0]
+        def rows = []
+        day.addTableModelListener({ rows << day.rowCount } as TableModelListener)
+        
+        def copy = new File(tmpDir.path, "copy.jpg")
+        copy.withOutputStream{ it << new File(tmpDir.path, IMAGE1).readBytes() }
+        copy.deleteOnExit()
+        watcher.poll()
+        watcher.poll()
+        assertEquals([2], rows)
+        
+        assertTrue(copy.delete())
+        watcher.poll()
+        watcher.poll()
+        assertEquals([2, 1], rows)
+    }
+    
+    public void testNoZone() {
+        copyFile(IMAGE2)
+        watcher.poll()
+        watcher.poll()
+        assertEquals(0, tmpDir.images.size())
+    }
+}
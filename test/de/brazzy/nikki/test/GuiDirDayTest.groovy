@@ -194,8 +194,7 @@ class GuiDirDayTest extends GuiTest {
     }
     
     public void testGeotag() {
-        nikki.timezoneFinder = new TimezoneFinder(TimezoneFinder.class
-                .getResourceAsStream("timezones.dat"))
+        nikki.timezoneFinder = TimezoneFinder.createDefault()
         copyFile("auto_geotag.jpg")
         copyFile("auto_geotag1.nmea")
         model.add(tmpDir)
@@ -17,9 +17,13 @@ package de.brazzy.nikki.test
  *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.awt.image.BufferedImage;
+
 import javax.imageio.ImageIO;
 
 import mediautil.image.jpeg.Entry;
+import mediautil.image.jpeg.Exif;
+import mediautil.image.jpeg.LLJTran;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -28,11 +32,13 @@ import org.joda.time.LocalTime;
 import org.joda.time.Minutes;
 
 import de.brazzy.nikki.model.Day;
+import de.brazzy.nikki.model.Geotagger;
 import de.brazzy.nikki.model.Image;
 import de.brazzy.nikki.model.ImageReader;
 import de.brazzy.nikki.model.ImageWriter;
 import de.brazzy.nikki.model.Rotation;
 import de.brazzy.nikki.model.Waypoint;
+import de.brazzy.nikki.util.ExifHeader;
 import de.brazzy.nikki.util.Texts;
 import de.brazzy.nikki.util.TimezoneFinder;
 
@@ -50,7 +56,7 @@ class ImageTest extends AbstractNikkiTest{
     }
     
     public void testTimezone() {
-        assertNotNull(reader.nikkiIFD)
+        assertTrue(reader.header.hasAppNote())
         assertEquals(TZ_DARWIN, reader.timeZone)
         assertEquals(new DateTime(2009, 11, 11, 19, 10, 27, 0, TZ_DARWIN), 
                 reader.time)
@@ -73,7 +79,7 @@ class ImageTest extends AbstractNikkiTest{
     }
     
     public void testThumbnail() {
-        assertNotNull(reader.exifData)
+        assertNotNull(reader.header)
         assertEquals(Rotation.LEFT, reader.rotation)
         assertNull(reader.isThumbnailNew())
         def thumb = reader.createImage().thumbnail
@@ -106,9 +112,30 @@ class ImageTest extends AbstractNikkiTest{
         assertEquals(180, thumb.height)
     }
     
+    public void testScaleSubsampled() {
+        ensureTmpDir()
+        File file = new File(tmpDir.path, "large.jpg")
+        ImageIO.write(new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB), "jpg", file)
+        file.deleteOnExit()
+        
+        reader = new ImageReader(file, TZ_BERLIN)
+        def thumb = ImageIO.read(new ByteArrayInputStream(reader.scale(180, false, true)))
+        assertEquals(180, thumb.width)
+        assertEquals(135, thumb.height)
+        assertEquals(400, reader.mainImage.width)
+        
+        reader.scale(400, false, false)
+        assertEquals(1000, reader.mainImage.width)
+        reader.scale(96, true, true)
+        assertEquals(1000, reader.mainImage.width)
+        
+        reader.readMainImage()
+        assertEquals(2000, reader.mainImage.width)
+    }
+    
     public void testReadExif() {
-        assertNotNull(reader.nikkiIFD)
-        assertNotNull(reader.gpsIFD)
+        assertTrue(reader.header.hasAppNote())
+        assertTrue(reader.header.hasGps())
         assertTrue(reader.export)
         assertEquals("Australia/Darwin", reader.timeZone.ID)
         assertEquals("Überschrift", reader.title)
@@ -216,6 +243,106 @@ class ImageTest extends AbstractNikkiTest{
         image.modified = false
     }
     
+    public void testSaveInPlace() {
+        copyFile(IMAGE2)
+        File file = new File(tmpDir.path, IMAGE2)
+        addWaypointFile(DAY2, "dummy");
+        Image image = addImage(DAY2, IMAGE2)
+        image.title = "short"
+        image.description = "short"
+        image.save(tmpDir.path)
+        long length = file.length()
+
+        image.title = "a considerably longer title than before"
+        image.description = "x"
+        image.export = false
+        image.save(tmpDir.path)
+        assertEquals(length, file.length())
+
+        ImageReader reader = new ImageReader(file, null)
+        assertEquals(ZONE.ID, reader.timeZone.ID)
+        assertEquals("a considerably longer title than before", reader.title)
+        assertEquals("x", reader.description)
+        assertFalse(reader.export)
+        assertEquals(-2.0, reader.waypoint.latitude.value)
+        assertEquals(22.0, reader.waypoint.longitude.value)
+
+        long baseTime = file.lastModified() - 10000000
+        assertTrue(file.setLastModified(baseTime))
+        image.modified = true
+        assertFalse(image.save(tmpDir.path))
+        assertEquals(baseTime, file.lastModified())
+
+        image.description = "y" * (ImageWriter.PADDING_SIZE + 1)
+        image.save(tmpDir.path)
+        assertTrue(file.length() > length)
+        reader = new ImageReader(file, null)
+        assertEquals(image.description, reader.description)
+        assertEquals("a considerably longer title than before", reader.title)
+    }
+
+    public void testRewriteKeepsImageData() {
+        copyFile(NO_EXIF)
+        File file = new File(tmpDir.path, NO_EXIF)
+        byte[] original = file.readBytes()
+        def before = ImageIO.read(file)
+        Image image = new ImageReader(file, TZ_BERLIN).createImage()
+        image.time = TIME2
+        image.save(tmpDir.path)
+
+        byte[] rewritten = file.readBytes()
+        assertTrue(rewritten.length > original.length)
+        // everything after SOI and the JFIF APP0 segment
+        int tail = original.length - 20
+        assertTrue(Arrays.equals(original[20..<original.length] as byte[],
+                rewritten[(rewritten.length-tail)..<rewritten.length] as byte[]))
+        def after = ImageIO.read(file)
+        assertEquals(before.width, after.width)
+        assertEquals(before.height, after.height)
+    }
+
+    public void testRewriteWithCommentBeforeAppx() {
+        copyFile(IMAGE2)
+        File file = new File(tmpDir.path, IMAGE2)
+        byte[] original = file.readBytes()
+        def comment = [0xFF, 0xFE, 0x00, 0x07] as byte[]
+        file.withOutputStream{
+            it.write(original, 0, 2)
+            it.write(comment)
+            it.write("nikki".getBytes("US-ASCII"))
+            it.write(original, 2, original.length-2)
+        }
+        assertEquals([0xFFFE, 0xFFE0, 0xFFE1], headerMarkers(file).findAll{ it == 0xFFFE || it >= 0xFFE0 })
+
+        Image image = new ImageReader(file, null).createImage()
+        image.title = "commented"
+        image.save(tmpDir.path)
+
+        def markers = headerMarkers(file)
+        assertEquals(1, markers.count(0xFFE0))
+        assertEquals(1, markers.count(0xFFE1))
+        assertEquals(1, markers.count(0xFFFE))
+        assertEquals("commented", new ImageReader(file, null).title)
+        assertNotNull(ImageIO.read(file))
+    }
+
+    /**
+     * @return the markers of the header segments up to SOS
+     */
+    private static List headerMarkers(File file) {
+        byte[] data = file.readBytes()
+        def result = []
+        int pos = 2
+        while(true) {
+            int marker = ((data[pos] & 0xFF) << 8) | (data[pos+1] & 0xFF)
+            if(marker == 0xFFDA) {
+                return result
+            }
+            result << marker
+            pos += 2 + (((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF))
+        }
+    }
+
     public void testModified() {
         copyFile(IMAGE1)
         Image image = reader.createImage()
@@ -240,6 +367,21 @@ class ImageTest extends AbstractNikkiTest{
         assertFalse(image.modified)
     }
     
+    public void testExifHeaderMatchesLLJTran() {
+        for(name in [IMAGE1, IMAGE2, "auto_geotag.jpg"]){
+            File file = new File(getClass().getResource(name).toURI())
+            LLJTran llj = new LLJTran(file)
+            llj.read(LLJTran.READ_INFO, true)
+            Exif exif = llj.imageInfo
+            ExifHeader header = ExifHeader.read(file)
+            
+            assertEquals(exif.orientation, header.orientation)
+            assertEquals(exif.dataTimeOriginalString, header.dateTimeOriginal)
+            assertEquals(exif.thumbnailBytes as List, header.thumbnail as List)
+        }
+        assertNull(ExifHeader.read(new File(getClass().getResource(NO_EXIF).toURI())))
+    }
+    
     public void testCoordinatePrecision() {
         double start = 12.38599967956543
         Entry e = ImageWriter.writeGpsMagnitude(start)
@@ -361,5 +503,67 @@ class ImageTest extends AbstractNikkiTest{
         assertSame(wp16, im15h.waypoint)
         assertSame(wp16, im17.waypoint)
     }
+    
+    public void testGeotagger() {
+        def random = new Random(42)
+        def start = new DateTime(2009, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC)
+        def waypoints = new TreeSet<Waypoint>()
+        200.times{
+            waypoints.add(new Waypoint(timestamp: start.plusMillis(500 * random.nextInt(20000))))
+        }
+        def images = []
+        (3 * Geotagger.MIN_CHUNK_SIZE).times{
+            images.add(new Image(time: start.plusMillis(500 * random.nextInt(24000) - 5000)))
+        }
+        images.add(new Image())
+        
+        // brute force: nearest neighbour on either side, compared in whole
+        // seconds, the earlier one if equally far
+        def expected = images.collect{ image ->
+            if(!image.time) {
+                return null
+            }
+            long t = image.time.minusMinutes(3).millis
+            def before = null
+            def after = null
+            for(wp in waypoints) {
+                long w = wp.timestamp.millis
+                if(w < t && (!before || w > before.timestamp.millis)) {
+                    before = wp
+                }
+                if(w >= t && (!after || w < after.timestamp.millis)) {
+                    after = wp
+                }
+            }
+            if(!after) {
+                return before
+            }
+            if(!before || after.timestamp.millis == t) {
+                return after
+            }
+            long distBefore = (t - before.timestamp.millis).intdiv(1000)
+            long distAfter = (after.timestamp.millis - t).intdiv(1000)
+            return distBefore > distAfter ? after : before
+        }
+        new Geotagger(waypoints, 3).geotag(images, Minutes.minutes(-3))
+        
+        assertNull(images.last().waypoint)
+        images.eachWithIndex{ image, i ->
+            assertSame(expected[i], image.waypoint)
+        }
+        assertTrue(images.first().modified)
+        assertNull(new Geotagger(new TreeSet<Waypoint>()).find(start.millis))
+        
+        def wp0 = new Waypoint(timestamp: start)
+        def wp10 = new Waypoint(timestamp: start.plusMillis(10000))
+        def wp20 = new Waypoint(timestamp: start.plusMillis(20500))
+        def geotagger = new Geotagger(new TreeSet([wp0, wp10, wp20]), 1)
+        assertSame(wp0, geotagger.find(start.minusHours(1).millis))
+        assertSame(wp0, geotagger.find(start.plusMillis(5000).millis))
+        assertSame(wp10, geotagger.find(start.plusMillis(5500).millis))
+        assertSame(wp10, geotagger.find(start.plusMillis(15300).millis))
+        assertSame(wp20, geotagger.find(start.plusMillis(20500).millis))
+        assertSame(wp20, geotagger.find(start.plusHours(1).millis))
+    }
 }
 
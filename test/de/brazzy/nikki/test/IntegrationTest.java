@@ -29,6 +29,7 @@ public class IntegrationTest extends TestSuite {
     public static TestSuite suite() {
         TestSuite s = new IntegrationTest();
         s.addTestSuite(DirectoryScannerTest.class);
+        s.addTestSuite(DirectoryWatcherTest.class);
         s.addTestSuite(PrefsTest.class);
         s.addTestSuite(ParserFactoryTest.class);
         s.addTest(new JUnit4TestAdapter(RouteConverterNmeaTest.class));
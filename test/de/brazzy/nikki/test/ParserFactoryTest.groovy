@@ -1,51 +1,84 @@
-package de.brazzy.nikki.test
+package de.brazzy.nikki.test
 
 
-/*   
- *   Copyright 2010 Michael Borgwardt
- *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
- *
- *  Nikki is free software: you can redistribute it and/or modify
- *  it under the terms of the GNU General Public License as published by
- *  the Free Software Foundation, either version 3 of the License, or
- *  (at your option) any later version.
- *
- *  Nikki is distributed in the hope that it will be useful,
- *  but WITHOUT ANY WARRANTY; without even the implied warranty of
- *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- *  GNU General Public License for more details.
- *
- *  You should have received a copy of the GNU General Public License
- *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+/*   
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
 import java.io.File;
-import org.junit.Test;
-
-import de.brazzy.nikki.util.ParserFactory;
-import slash.navigation.nmea.NmeaFormat;
+import org.junit.Test;
 
-/**
- * @author Michael Borgwardt
- *
+import de.brazzy.nikki.util.ParserFactory;
+import de.brazzy.nikki.util.TrackFileType;
+import slash.navigation.kml.Kml21Format;
+import slash.navigation.kml.Kml22Format;
+import slash.navigation.nmea.NmeaFormat;
+
+/**
+ * @author Michael Borgwardt
+ *
  */
 class ParserFactoryTest extends AbstractNikkiTest {
     
     ParserFactory factory = new ParserFactory()
     
-    void testNmea() {
-        copyFile(WAYPOINTS1)
-        def f = new File(tmpDir.path, WAYPOINTS1)
-        def parser = factory.findParser(f)
-        assertNotNull(parser)
-        assertTrue(parser instanceof NmeaFormat)
-    }    
-    
-    //    void testNoGps() {
-    //        copyFile(IMAGE1)
-    //        def parser = factory.findParser(new File(tmpDir.path, IMAGE1))
-    //        assertNull(parser)
-    //    }        
-    
+    void testNmea() {
+        copyFile(WAYPOINTS1)
+        def f = new File(tmpDir.path, WAYPOINTS1)
+        def parser = factory.findParser(f)
+        assertNotNull(parser)
+        assertTrue(parser instanceof NmeaFormat)
+    }    
+    
+    void testNoGps() {
+        copyFile(IMAGE1)
+        def parser = factory.findParser(new File(tmpDir.path, IMAGE1))
+        assertNull(parser)
+    }        
+    
+    void testKml() {
+        ensureTmpDir()
+        def f = new File(tmpDir.path, "track.kml")
+        f.deleteOnExit()
+        f.write('<?xml version="1.0"?>\n<kml xmlns="http://www.opengis.net/kml/2.2">')
+        assertTrue(factory.findParser(f) instanceof Kml22Format)
+        f.write('<?xml version="1.0"?>\n<kml xmlns="http://earth.google.com/kml/2.1">')
+        assertTrue(factory.findParser(f) instanceof Kml21Format)
+    }
+    
+    void testDetect() {
+        copyFile(WAYPOINTS1)
+        copyFile(IMAGE1)
+        assertEquals(TrackFileType.NMEA, TrackFileType.detect(new File(tmpDir.path, WAYPOINTS1)))
+        assertEquals(TrackFileType.NO_TRACK, TrackFileType.detect(new File(tmpDir.path, IMAGE1)))
+        
+        assertEquals(TrackFileType.GPX, detect('<?xml version="1.0"?>\n<gpx version="1.1">'))
+        assertEquals(TrackFileType.KML, detect('<?xml version="1.0"?>\n<kml xmlns="http://earth.google.com/kml/2.1">'))
+        assertEquals(TrackFileType.NO_TRACK, detect('<?xpacket begin="" id="W5M0MpCehiHzreSzNTczkc9d"?>\n<x:xmpmeta>'))
+        assertEquals(TrackFileType.NO_TRACK, detect("\u0000\u0000\u0000\u0014ftypqt  "))
+        assertEquals(TrackFileType.NO_TRACK, detect(""))
+        assertEquals(TrackFileType.UNKNOWN, detect("Erroneous data"))
+        assertEquals(TrackFileType.NMEA, detect("@Sonygps/ver1.0/wgs-84\r\n\$GPRMC,050904.000,A,2400.0000,S,13312.0000,E,0.00,0.0,111109,,,A*7C"))
+    }
+    
+    private TrackFileType detect(String start) {
+        byte[] bytes = start.getBytes("ISO-8859-1")
+        return TrackFileType.detect(bytes, bytes.length)
+    }
+    
 }
 
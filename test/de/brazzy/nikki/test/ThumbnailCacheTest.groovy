@@ -0,0 +1,91 @@
+package de.brazzy.nikki.test;
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+
+import de.brazzy.nikki.model.Image;
+import de.brazzy.nikki.view.ThumbnailCache;
+
+/**
+ * @author Michael Borgwardt
+ */
+class ThumbnailCacheTest extends GroovyTestCase {
+
+    public void testHitAndMiss() {
+        def cache = new ThumbnailCache()
+        def image = new Image(fileName: "a.jpg", thumbnail: jpeg(16, 12))
+
+        def icon = cache.get(image)
+        assertEquals(16, icon.iconWidth)
+        assertEquals(12, icon.iconHeight)
+        assertSame(icon, cache.get(image))
+        assertEquals(1, cache.hits)
+        assertEquals(1, cache.misses)
+
+        def other = new Image(fileName: "a.jpg", thumbnail: image.thumbnail)
+        assertNotSame(icon, cache.get(other))
+        assertEquals(2, cache.misses)
+        assertEquals(2, cache.size())
+    }
+
+    public void testInvalidate() {
+        def cache = new ThumbnailCache()
+        def image = new Image(fileName: "a.jpg", thumbnail: jpeg(16, 12))
+        cache.get(image)
+
+        image.thumbnail = jpeg(8, 6)
+        def icon = cache.get(image)
+        assertEquals(8, icon.iconWidth)
+        assertEquals(0, cache.hits)
+        assertEquals(2, cache.misses)
+        assertEquals(1, cache.size())
+        assertTrue(cache.bytes >= 8*6*4)
+
+        image.thumbnail = null
+        assertNull(cache.get(image))
+        assertEquals(0, cache.size())
+        assertEquals(0, cache.bytes)
+    }
+
+    public void testEviction() {
+        def images = (0..2).collect{ new Image(fileName: "${it}.jpg", thumbnail: jpeg(16, 12)) }
+        def probe = new ThumbnailCache()
+        probe.get(images[0])
+        def cache = new ThumbnailCache(2 * probe.bytes)
+        cache.get(images[0])
+        cache.get(images[1])
+        cache.get(images[0])
+        cache.get(images[2])
+        assertEquals(2, cache.size())
+
+        cache.get(images[0])
+        assertEquals(2, cache.hits)
+        cache.get(images[1])
+        assertEquals(2, cache.hits)
+        assertEquals(4, cache.misses)
+    }
+
+    private byte[] jpeg(int width, int height) {
+        def out = new ByteArrayOutputStream()
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpg", out)
+        return out.toByteArray()
+    }
+}
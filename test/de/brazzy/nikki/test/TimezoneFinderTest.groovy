@@ -18,9 +18,8 @@ package de.brazzy.nikki.test;
  */
 
 
-import com.infomatiq.jsi.Rectangle
-
 import de.brazzy.nikki.util.TimezoneFinder
+import org.joda.time.DateTimeZone
 import groovy.util.GroovyTestCase
 
 /**
@@ -33,41 +32,169 @@ class TimezoneFinderTest extends GroovyTestCase {
     }
     
     public void testParse() {
+        def obj = new TimezoneFinder(new ByteArrayInputStream(createIndex()))
+        assertEquals(["Europe/Berlin", "Australia/Brisbane"], obj.zoneIds as List)
+        assertEquals(2, obj.size())
+        assertEquals(AbstractNikkiTest.TZ_BRISBANE, obj.find(-10.0f, 22.0f))
+        assertEquals(AbstractNikkiTest.TZ_BERLIN, obj.find(1.0f, 2.0f))
+        assertNull(obj.find(Float.NaN, 2.0f))
+    }
+    
+    public void testInvalid() {
+        shouldFail(IOException){
+            new TimezoneFinder(new ByteArrayInputStream(new byte[12]))
+        }
+    }
+    
+    public void testMap() {
+        def file = File.createTempFile("timezones", ".idx")
+        try {
+            file.withOutputStream{ it.write(createIndex()) }
+            def obj = new TimezoneFinder(file)
+            assertEquals(2, obj.size())
+            assertEquals(AbstractNikkiTest.TZ_BERLIN, obj.find(0.0f, 0.0f))
+        } finally {
+            file.delete()
+        }
+    }
+    
+    public void testFind() {
+        def lats = new float[200]
+        def lons = new float[200]
+        def zones = new short[200]
+        def random = new Random(42)
+        200.times{
+            lats[it] = (float)(random.nextFloat()*180-90)
+            lons[it] = (float)(random.nextFloat()*360-180)
+            zones[it] = (short)(lons[it] < 0 ? 0 : 1)
+        }
+        lats[0] = -10.0f
+        lons[0] = 22.0f
+        zones[0] = 0
+        lats[1] = 100.0f
+        lons[1] = -2.0f
+        zones[1] = 1
         def baos = new ByteArrayOutputStream()
-        def oos = new ObjectOutputStream(baos)
-        oos.writeUTF("Europe/Berlin")
-        oos.writeUTF("Australia/Brisbane")
-        oos.writeUTF("")
-        oos.writeFloat(-10.0f)
-        oos.writeFloat(22.0f)
-        oos.writeShort(1)
-        oos.writeFloat(1.0f)
-        oos.writeFloat(2.0f)
-        oos.writeShort(0)
-        oos.writeFloat(Float.NaN)
-        oos.close()
+        TimezoneFinder.writeIndex(["Europe/Berlin", "Australia/Brisbane"], 
+                lats, lons, zones, baos)
+        def obj = new TimezoneFinder(new ByteArrayInputStream(baos.toByteArray()))
         
+        assertEquals(obj.find(-10.0f, 22.0f), AbstractNikkiTest.TZ_BERLIN)
+        assertEquals(obj.find(100.0f, -2.0f), AbstractNikkiTest.TZ_BRISBANE)
+        assertEquals(obj.find(1000.0f, -2.0f), AbstractNikkiTest.TZ_BRISBANE)
+        
+        // compare with exhaustive search
+        500.times{
+            float lat = (float)(random.nextFloat()*180-90)
+            float lon = (float)(random.nextFloat()*360-180)
+            def best = (0..<200).min{ i ->
+                float dLat = lat - lats[i]
+                float dLon = lon - lons[i]
+                dLat*dLat + dLon*dLon
+            }
+            assertEquals(zones[best] == 0 ? AbstractNikkiTest.TZ_BERLIN : 
+                    AbstractNikkiTest.TZ_BRISBANE, obj.find(lat, lon))
+        }
+    }    
+    
+    public void testRaster() {
+        def random = new Random(7)
+        def lats = new float[300]
+        def lons = new float[300]
+        def zones = new short[300]
+        300.times{
+            lats[it] = (float)(random.nextFloat()*180-90)
+            lons[it] = (float)(random.nextFloat()*360-180)
+            zones[it] = (short)random.nextInt(3)
+        }
+        def baos = new ByteArrayOutputStream()
+        TimezoneFinder.writeIndex(["Europe/Berlin", "Australia/Brisbane", "Asia/Tokyo"], 
+                lats, lons, zones, 2, baos)
         def obj = new TimezoneFinder(new ByteArrayInputStream(baos.toByteArray()))
-        assertEquals(obj.zones, 
-                [ AbstractNikkiTest.TZ_BERLIN, 
-                AbstractNikkiTest.TZ_BRISBANE])
-        assertEquals(2, obj.tree.size())
-        assertEquals(new Rectangle(-10.0f, 22.0f, 1.0f, 2.0f), obj.tree.bounds)
+        assertEquals(2, obj.cellsPerDegree)
+        assertSame(obj.find(90.0f, 180.0f), obj.find(90.0f, 180.0f))
+        assertRasterAgrees(obj, 0.7f)
     }
     
-    public void testFind() {
-        def obj = new TimezoneFinder()
-        obj.zones = [AbstractNikkiTest.TZ_BERLIN, 
-                AbstractNikkiTest.TZ_BRISBANE]
-        obj.tree.add(new Rectangle(-10.0f, 22.0f, -10.00001f, 22.0001f), 0)
-        obj.tree.add(new Rectangle(100.0f, -2.0f, 100.00001f, -2.0001f), 1)
+    public void testDefaultRaster() {
+        def obj = TimezoneFinder.createDefault()
+        assertEquals(TimezoneFinder.DEFAULT_CELLS_PER_DEGREE, obj.cellsPerDegree)
+        assertEquals(AbstractNikkiTest.TZ_BERLIN, obj.find(52.5f, 13.4f))
+        assertRasterAgrees(obj, 0.45f)
+    }
+    
+    private void assertRasterAgrees(TimezoneFinder obj, float step) {
+        for(float lat=-90.0f; lat<=90.0f; lat+=step) {
+            for(float lon=-180.0f; lon<=180.0f; lon+=step) {
+                obj.rasterEnabled = true
+                def raster = obj.find(lat, lon)
+                obj.rasterEnabled = false
+                assertEquals("at $lat, $lon", obj.find(lat, lon), raster)
+            }
+        }
+        obj.rasterEnabled = true
+    }
+    
+    private byte[] createIndex() {
+        def baos = new ByteArrayOutputStream()
+        TimezoneFinder.writeIndex(["Europe/Berlin", "Australia/Brisbane"], 
+                [-10.0f, 1.0f] as float[], [22.0f, 2.0f] as float[],
+                [1, 0] as short[], baos)
+        return baos.toByteArray()
+    }
+    
+    public void testBatchFind() {
+        def obj = new MockTimezoneFinder()
+        obj.addCall(10.0f, 20.0f, AbstractNikkiTest.TZ_BERLIN)
+        obj.addCall(10.5f, 20.0f, AbstractNikkiTest.TZ_BRISBANE)
+        obj.addCall(Float.NaN, Float.NaN, null)
         
-        assertEquals(obj.find(-20.0f, 10.0f), AbstractNikkiTest.TZ_BERLIN)
-        assertEquals(obj.find(10.0f, 10.0f), AbstractNikkiTest.TZ_BERLIN)
-        assertEquals(obj.find(70.0f, 0.0f), AbstractNikkiTest.TZ_BRISBANE)
-        assertEquals(obj.find(1000.0f, 22.0f), AbstractNikkiTest.TZ_BRISBANE)
+        float[] lats = [10.0f, 10.001f, 10.5f, 10.002f, Float.NaN]
+        float[] lons = [20.0f, 20.001f, 20.0f, 20.002f, 20.0f]
+        DateTimeZone[] result = new DateTimeZone[5]
+        obj.find(lats, lons, result)
+        obj.finished()
+        assertEquals([AbstractNikkiTest.TZ_BERLIN, AbstractNikkiTest.TZ_BERLIN,
+                AbstractNikkiTest.TZ_BRISBANE, AbstractNikkiTest.TZ_BERLIN, null], result as List)
         
-    }    
+        // cache persists across calls
+        obj.find([10.5f] as float[], [20.0f] as float[], result)
+        obj.finished()
+        assertEquals(AbstractNikkiTest.TZ_BRISBANE, result[0])
+    }
+    
+    public void testConcurrent() {
+        def obj = TimezoneFinder.createDefault()
+        def random = new Random(11)
+        int count = TimezoneFinder.MIN_CHUNK_SIZE * 3
+        float[] lats = new float[count]
+        float[] lons = new float[count]
+        count.times{
+            lats[it] = (float)(random.nextFloat()*140-60)
+            lons[it] = (float)(random.nextFloat()*360-180)
+        }
+        DateTimeZone[] expected = new DateTimeZone[count]
+        count.times{
+            expected[it] = obj.find(lats[it], lons[it])
+        }
+        
+        DateTimeZone[] result = new DateTimeZone[count]
+        obj.find(lats, lons, result, 4)
+        assertEquals(expected as List, result as List)
+        
+        def errors = Collections.synchronizedList([])
+        def threads = (0..<4).collect{ offset ->
+            Thread.start{
+                for(int i=offset; i<count; i+=4) {
+                    if(obj.find(lats[i], lons[i]) != expected[i]) {
+                        errors << i
+                    }
+                }
+            }
+        }
+        threads*.join()
+        assertEquals([], errors)
+    }
     
     public void testLogging() {
         def obj = new TimezoneFinder()
@@ -0,0 +1,104 @@
+package de.brazzy.nikki.test;
+/*   
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.brazzy.nikki.util.GpxParser;
+import de.brazzy.nikki.util.NmeaParser;
+import de.brazzy.nikki.util.TrackParser;
+import de.brazzy.nikki.util.TrackPointHandler;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * @author Michael Borgwardt
+ */
+class TrackParserTest extends AbstractNikkiTest {
+    
+    public void testNmeaFile() {
+        copyFile(WAYPOINTS1)
+        def points = parse(new NmeaParser(), new File(tmpDir.path, WAYPOINTS1))
+        assertEquals(2, points.size())
+        
+        assertEquals(new DateTime(2009, 11, 11, 5, 9, 4, 0, DateTimeZone.UTC).millis, points[0][2])
+        assertEquals(-(23 + 58.2851/60), points[0][0], 1e-9)
+        assertEquals(133 + 12.0840/60, points[0][1], 1e-9)
+        assertEquals(new DateTime(2009, 11, 11, 6, 0, 33, 0, DateTimeZone.UTC).millis, points[1][2])
+    }
+    
+    public void testNmeaSentences() {
+        def points = parseText(new NmeaParser(), [
+            "garbage",
+            nmea("GPGGA,235958.000,5932.0000,N,01303.0000,E,1,00,,0.0,M,0.0,M,,0000"),
+            nmea("GPRMC,235959.000,A,5932.0000,N,01303.0000,W,000.00,0.0,311209,,,E"),
+            nmea("GPRMC,235959.500,V,,,,,,,311209,,,N"),
+            nmea("GPRMC,235959.500,A,5932.0000,N,01303.0000,E,000.00,0.0,311209,,,E").replace("*", "0*"),
+            nmea("GPGGA,000000.250,5932.5000,S,01303.0000,E,1,00,,0.0,M,0.0,M,,0000"),
+            nmea("GPGGA,000001.000,5932.5000,S,01303.0000,E,0,00,,0.0,M,0.0,M,,0000"),
+            nmea("GNRMC,000002.000,A,5932.5000,S,01303.0000,E,000.00,0.0,010110,,,E"),
+            "\$GPRMC,000003.000,A,5932.5000,S,01303.0000,E,000.00,0.0,010110,,,E",
+        ].join("\r\n"))
+        
+        assertEquals(4, points.size())
+        assertEquals(new DateTime(2009, 12, 31, 23, 59, 59, 0, DateTimeZone.UTC).millis, points[0][2])
+        assertEquals(-(13 + 3/60.0), points[0][1], 1e-9)
+        assertEquals(new DateTime(2010, 1, 1, 0, 0, 0, 250, DateTimeZone.UTC).millis, points[1][2])
+        assertEquals(-(59 + 32.5/60), points[1][0], 1e-9)
+        assertEquals(new DateTime(2010, 1, 1, 0, 0, 2, 0, DateTimeZone.UTC).millis, points[2][2])
+        assertEquals(new DateTime(2010, 1, 1, 0, 0, 3, 0, DateTimeZone.UTC).millis, points[3][2])
+    }
+    
+    public void testGpx() {
+        def points = parseText(new GpxParser(), '''<?xml version="1.0" encoding="UTF-8"?>
+<gpx version="1.1" creator="test" xmlns="http://www.topografix.com/GPX/1/1">
+  <wpt lat="1.0" lon="2.0"><time>2009-11-11T05:00:00Z</time></wpt>
+  <trk><trkseg>
+    <trkpt lat="-23.5" lon="133.25"><ele>600</ele><time>2009-11-11T05:09:04Z</time></trkpt>
+    <trkpt lat="-23.6" lon="133.3"></trkpt>
+    <trkpt lat="-23.7" lon="133.35"><time>2009-11-11T15:30:00.5+09:30</time></trkpt>
+  </trkseg></trk>
+</gpx>''')
+        assertEquals(2, points.size())
+        assertEquals([-23.5d, 133.25d, new DateTime(2009, 11, 11, 5, 9, 4, 0, DateTimeZone.UTC).millis], points[0])
+        assertEquals([-23.7d, 133.35d, new DateTime(2009, 11, 11, 6, 0, 0, 500, DateTimeZone.UTC).millis], points[1])
+    }
+    
+    private String nmea(String body) {
+        int checksum = 0
+        for(char c in body.toCharArray()) {
+            checksum ^= (int)c
+        }
+        return "\$" + body + "*" + String.format("%02X", checksum)
+    }
+    
+    private List parseText(TrackParser parser, String text) {
+        ensureTmpDir()
+        File f = new File(tmpDir.path, "track")
+        f.write(text, "UTF-8")
+        f.deleteOnExit()
+        return parse(parser, f)
+    }
+    
+    private List parse(TrackParser parser, File file) {
+        def result = []
+        parser.parse(file, { double lat, double lon, long time ->
+            result << [lat, lon, time]
+        } as TrackPointHandler)
+        return result
+    }
+}
@@ -35,6 +35,9 @@ public class UnitTest extends TestSuite {
         s.addTestSuite(DirectoryTest.class);
         s.addTestSuite(DayTest.class);
         s.addTestSuite(TimezoneFinderTest.class);
+        s.addTestSuite(TrackParserTest.class);
+        s.addTestSuite(ThumbnailCacheTest.class);
+        s.addTestSuite(WaypointSetTest.class);
         return s;
     }
 }
@@ -0,0 +1,134 @@
+package de.brazzy.nikki.test
+/*
+ *   Copyright 2010 Michael Borgwardt
+ *   Part of the Nikki Photo GPS diary:  http://www.brazzy.de/nikki
+ *
+ *  Nikki is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Nikki is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+import org.joda.time.LocalDate
+
+import de.brazzy.nikki.model.Cardinal
+import de.brazzy.nikki.model.Day
+import de.brazzy.nikki.model.Track
+import de.brazzy.nikki.model.Waypoint
+import de.brazzy.nikki.model.WaypointFile
+import de.brazzy.nikki.model.WaypointSet
+import de.brazzy.nikki.util.TrackPointBuffer
+
+/**
+ * @author Michael Borgwardt
+ */
+class WaypointSetTest extends AbstractNikkiTest {
+    private static final DateTime START = new DateTime(2010, 1, 10, 22, 0, 0, 0, DateTimeZone.UTC)
+
+    private WaypointFile wf
+
+    protected void setUp() {
+        super.setUp()
+        def points = new TrackPointBuffer()
+        points.point(-12.4634d, 130.8456d, START.plusHours(3).millis)
+        points.point(52.5d, -13.4d, START.millis)
+        points.point(52.6d, -13.5d, START.plusHours(1).millis)
+        wf = new WaypointFile(fileName: WAYPOINTS1, directory: tmpDir)
+        wf.track = new Track(wf, points, [TZ_DARWIN, null, null] as DateTimeZone[])
+    }
+
+    public void testTrack() {
+        Track track = wf.track
+        assertEquals(3, track.size())
+        assertEquals(-12.4634d, track.getLatitude(0), 1e-7d)
+        assertEquals(DateTimeZone.UTC, track.getZone(1))
+
+        Waypoint wp = wf.waypoints[0]
+        assertSame(wp, wf.waypoints[0])
+        assertSame(wf, wp.file)
+        assertEquals(Cardinal.SOUTH, wp.latitude.direction)
+        assertEquals(Cardinal.EAST, wp.longitude.direction)
+        assertEquals(130.8456d, wp.longitude.value, 1e-7d)
+        assertEquals(new DateTime(START.plusHours(3).millis, TZ_DARWIN), wp.timestamp)
+        assertEquals([wp], track.createdWaypoints)
+
+        def byDate = track.pointsByDate
+        assertEquals([new LocalDate(2010, 1, 11), new LocalDate(2010, 1, 10)],
+                byDate.keySet() as List)
+        assertEquals([0], byDate[new LocalDate(2010, 1, 11)] as List)
+        assertEquals([1, 2], byDate[new LocalDate(2010, 1, 10)] as List)
+    }
+
+    public void testSetSemantics() {
+        def set = new WaypointSet()
+        def wp1 = new Waypoint(timestamp: START)
+        def wp2 = new Waypoint(timestamp: START.plusMinutes(1))
+        def duplicate = new Waypoint(timestamp: START.plusMinutes(1))
+
+        assertTrue(set.add(wp2))
+        assertTrue(set.add(wp1))
+        assertFalse(set.add(duplicate))
+        assertEquals([wp1, wp2], set as List)
+        assertTrue(set.contains(duplicate))
+        assertEquals([wp1], set.headSet(wp2) as List)
+        assertEquals([wp2], set.tailSet(duplicate) as List)
+
+        assertTrue(set.addTrack(wf.track))
+        assertEquals(4, set.size())
+        assertSame(wp1, set.first())
+        assertSame(wf.waypoints[0], set.last())
+        assertEquals(START.plusHours(1).millis, set.getTime(2))
+        assertEquals(52.6d, set.getLatitude(2), 1e-7d)
+
+        assertTrue(set.removeTrack(wf.track))
+        assertEquals([wp1, wp2], set as List)
+        assertTrue(set.remove(duplicate))
+        assertEquals([wp1], set as List)
+
+        def iterator = set.iterator()
+        iterator.next()
+        iterator.remove()
+        assertTrue(set.isEmpty())
+    }
+
+    public void testAddAll() {
+        def set = new WaypointSet()
+        def wp1 = new Waypoint(timestamp: START)
+        def wp2 = new Waypoint(timestamp: START.plusMinutes(1))
+        def wp3 = new Waypoint(timestamp: START.plusMinutes(2))
+        set.add(wp2)
+
+        assertTrue(set.addAll([wp3, new Waypoint(timestamp: START.plusMinutes(1)), wp1,
+            new Waypoint(timestamp: START)]))
+        assertEquals([wp1, wp2, wp3], set as List)
+        assertFalse(set.addAll([wp1, wp2]))
+    }
+
+    public void testDirectory() {
+        tmpDir.addWaypointFile(wf)
+        assertEquals(3, tmpDir.waypoints.size())
+        assertEquals(2, tmpDir.size())
+        Day day1 = tmpDir.getDay(new LocalDate(2010, 1, 10))
+        Day day2 = tmpDir.getDay(new LocalDate(2010, 1, 11))
+        assertEquals(2, day1.waypoints.size())
+        assertSame(wf.waypoints[1], day1.waypoints.first())
+        assertSame(day1, wf.waypoints[1].day)
+        assertSame(day2, wf.waypoints[0].day)
+
+        tmpDir.removeWaypointFile(wf)
+        assertTrue(tmpDir.waypoints.isEmpty())
+        assertEquals(0, tmpDir.size())
+        assertTrue(tmpDir.waypointFiles.isEmpty())
+        assertNull(wf.waypoints[1].day)
+    }
+}
@@ -20,25 +20,51 @@ package de.brazzy.nikki.util;
 
 import java.io.File;
 
-import org.joda.time.DateTimeZone;
-
 import de.brazzy.nikki.DirectoryScanner;
-import de.brazzy.nikki.model.Directory;
+import de.brazzy.nikki.model.WaypointFile;
 
+/**
+ * Compares parsing all GPS logs in a directory through RouteConverter with
+ * the built-in streaming parsers
+ */
 public class ParseWaypointBenchmark {
     public static void main(String... args) throws Exception {
         long start = System.nanoTime();
-        TimezoneFinder finder = new TimezoneFinder(TimezoneFinder.class
-                .getResourceAsStream("timezones.dat"));
-        System.out
-                .println((System.nanoTime() - start) / (1000 * 1000 * 1000.0));
-        Directory dir = new Directory();
-        dir.setPath(new File(args[0]));
-        DirectoryScanner scanner = new DirectoryScanner();
-        scanner.setFinder(finder);
-        scanner.setZone(DateTimeZone.UTC);
-        scanner.scan(dir, null);
-        System.out
-                .println((System.nanoTime() - start) / (1000 * 1000 * 1000.0));
+        TimezoneFinder finder = TimezoneFinder.createDefault();
+        System.out.println("timezones loaded: "
+                + (System.nanoTime() - start) / (1000 * 1000 * 1000.0));
+        File[] files = new File(args[0]).listFiles();
+
+        for (int run = 0; run < 3; run++) {
+            for (boolean nativeParsers : new boolean[] { false, true }) {
+                DirectoryScanner scanner = new DirectoryScanner();
+                scanner.setFinder(finder);
+                scanner.setParserFactory(new ParserFactory());
+                scanner.setNativeParsers(nativeParsers);
+
+                start = System.nanoTime();
+                int count = 0;
+                for (File f : files) {
+                    if (!f.isFile()
+                            || f.getName().toUpperCase().endsWith(".JPG")) {
+                        continue;
+                    }
+                    try {
+                        WaypointFile wf = scanner.parseWaypointFile(f);
+                        if (wf != null) {
+                            count += wf.getWaypoints().size();
+                        }
+                    } catch (Exception e) {
+                        System.out.println(f.getName() + ": " + e);
+                    }
+                }
+                System.out.println((nativeParsers ? "native:         "
+                        : "RouteConverter: ")
+                        + count
+                        + " waypoints in "
+                        + (System.nanoTime() - start)
+                        / (1000 * 1000 * 1000.0));
+            }
+        }
     }
 }
@@ -17,110 +17,106 @@ package de.brazzy.nikki.util
  *  along with Nikki.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-
-import com.infomatiq.jsi.Rectangle;
-
+
 import java.util.zip.ZipInputStream;
 
-
-import com.infomatiq.jsi.IntProcedure;
-import com.infomatiq.jsi.Point;
-import com.infomatiq.jsi.rtree.RTree;
-
-
+import org.joda.time.DateTimeZone
+
+
 class PrepTimezoneData {
     /**
-     * Converts location data from geonames.org to a compact, quickly parseable
-     * binary format:
-     * - An arbitrary number of timezone IDs (written by ObjectOutputStream.writeUTF())
-     * - One empty String (written by ObjectOutputStream.writeUTF())
-     * - An arbitrary number of locations, consisting of
-     *   - latitude as (written by ObjectOutputStream.writeFloat())
-     *   - longitude as (written by ObjectOutputStream.writeFloat())
-     *   - timezone as index into the above list of timezone IDs
-     *     (written by ObjectOutputStream.writeShort())
-     * - An end-of-file marker consisting of Float.NaN
-     *   (written by ObjectOutputStream.writeFloat())
+     * Converts location data from geonames.org to the pre-packed, memory-mappable
+     * k-d tree index read by TimezoneFinder:
+     * - a header with the timezone IDs
+     * - all latitudes, longitudes and timezones as flat little-endian arrays,
+     *   in the order of the k-d tree, so that nothing needs to be built when
+     *   the index is loaded
+     * - a raster of the timezones at 0.05 degrees resolution, so that most
+     *   lookups need no search
      * 
+     * @see TimezoneFinder#writeIndex
      * @author Michael Borgwardt
-     */
+     */
     public static void main(args) {
         def zip = new ZipInputStream(new FileInputStream(args[0]))
         def entry = zip.getNextEntry()
         assert entry.name == "cities1000.txt"
         def zones = []
-        def entries = []
-        
-        zip.eachLine("UTF-8"){ String line ->
+        def lats = []
+        def lngs = []
+        def indices = []
+        
+        zip.eachLine("UTF-8"){ String line ->
             def data = line.split("\t")
-            def lat = data[4] as float
-            def lng = data[5] as float
-            def zone = data[17] 
+            def zone = data[17] 
+            if(zone == "Asia/Kathmandu") {
+                zone = "Asia/Katmandu"
+            }
             def index = zones.indexOf(zone)
             if(index==-1) {
                 zones.add(zone)
                 index = zones.size()-1
             }
-            entries.add([lat,lng,index])
+            lats.add(data[4] as float)
+            lngs.add(data[5] as float)
+            indices.add(index as short)
         }
-        def out = new ObjectOutputStream(new FileOutputStream(args[1]))
-        zones.each{
-            if(it == "Asia/Kathmandu") {
-                out.writeUTF("Asia/Katmandu")                
-            }
-            else {
-                out.writeUTF(it)
-            }
-        }
-        out.writeUTF("")
-        entries.each{
-            out.writeFloat(it[0])
-            out.writeFloat(it[1])
-            out.writeShort(it[2])
-        }
-        out.writeFloat(Float.NaN)
+        def out = new BufferedOutputStream(new FileOutputStream(args[1]))
+        TimezoneFinder.writeIndex(zones, lats as float[], lngs as float[],
+                indices as short[], TimezoneFinder.DEFAULT_CELLS_PER_DEGREE, out)
         out.close()
         
-        testRTree(args[1])
+        testRTree(args[1])
     }
     
+    /**
+     * Measures the throughput of lookups with an increasing number of threads
+     * sharing one TimezoneFinder, with and without the raster
+     */
     public static void testRTree(String file) {
         System.out.println("Start test")
         def start = System.nanoTime()
-        def props = new Properties()
-        props["MaxNodeEntries"]="50"
-        props["MinNodeEntries"]="20"
-        System.out.println(props)
-        RTree tree = new RTree()
-        tree.init(props)
+        TimezoneFinder finder = new TimezoneFinder(new File(file))
+        System.out.println("Loaded " + finder.size() + " locations in " + 
+                (System.nanoTime()-start)/(1000.0*1000*1000))
         
-        ObjectInputStream data = new ObjectInputStream(new FileInputStream(file))
-        def zones = []
-        for(def zone=data.readUTF();zone != "";zone=data.readUTF()) {
-            zones.add(zone)
+        def brisbane = DateTimeZone.forID("Australia/Brisbane")
+        def berlin = DateTimeZone.forID("Europe/Berlin")
+        def tokyo = DateTimeZone.forID("Asia/Tokyo")
+        def lookups = 200000
+        def random = new Random(0)
+        float[] lats = new float[lookups]
+        float[] lngs = new float[lookups]
+        lookups.times{
+            lats[it] = (float)(random.nextFloat()*140-60)
+            lngs[it] = (float)(random.nextFloat()*360-180)
         }
         
-        while(true) {
-            def lat=data.readFloat()
-            if(Float.isNaN(lat)) {
-                break
+        def processors = Runtime.runtime.availableProcessors()
+        [true, false].each{ raster ->
+            finder.rasterEnabled = raster
+            for(def threads=1; threads<=processors; threads*=2) {
+                start = System.nanoTime()
+                def workers = (0..<threads).collect{
+                    Thread.start{
+                        assert finder.find(-24.95867f, 146.138763f) == brisbane
+                        assert finder.find(48.110383f, 11.567788f) == berlin
+                        assert finder.find(35.543658f, 139.508954f) == tokyo
+                        for(int i=0; i<lookups; i++) {
+                            finder.find(lats[i], lngs[i])
+                        }
+                    }
+                }
+                workers*.join()
+                def seconds = (System.nanoTime()-start)/(1000.0*1000*1000)
+                System.out.println("raster: $raster, threads: $threads, lookups per second: " + 
+                        (int)(threads*lookups/seconds))
             }
-            def lng=data.readFloat()
-            def zone=data.readShort()
-            tree.add(new Rectangle((float)lat, (float)lng, (float)(lat+0.00001), (float)(lng+0.00001)), zone)
         }
         
-        def result;
-        
-        50000.times{
-            tree.nearest(new Point(-24.95867f, 146.138763f), { result = zones[it]; return false } as IntProcedure, Float.POSITIVE_INFINITY)
-            assert result == "Australia/Brisbane"
-            tree.nearest(new Point(48.110383f, 11.567788f), { result = zones[it]; return false } as IntProcedure, Float.POSITIVE_INFINITY)
-            assert result == "Europe/Berlin"
-            tree.nearest(new Point(35.543658f, 139.508954f), { result = zones[it]; return false } as IntProcedure, Float.POSITIVE_INFINITY)            
-            assert result == "Asia/Tokyo"        
-        }
-        
-        System.out.println("Total time: " + (System.nanoTime()-start)/(1000.0*1000*1000));
-    }
-}
+        DateTimeZone[] result = new DateTimeZone[lookups]
+        start = System.nanoTime()
+        finder.find(lats, lngs, result)
+        System.out.println("Batch lookup time: " + (System.nanoTime()-start)/(1000.0*1000*1000));
+    }
+}